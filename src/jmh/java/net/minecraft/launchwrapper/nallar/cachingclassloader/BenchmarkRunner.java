@@ -0,0 +1,29 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Runs the selected benchmarks single threaded and then with jmh.threads threads (defaults to the number of cores),
+ * writing the results of both runs to one JSON file
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws RunnerException {
+		String include = System.getProperty("jmh.include", ".*");
+		int threads = Integer.getInteger("jmh.threads", Runtime.getRuntime().availableProcessors());
+		File results = new File(System.getProperty("jmh.results", "results.json"));
+
+		List<RunResult> all = new ArrayList<>();
+		for (int t : threads > 1 ? new int[]{1, threads} : new int[]{1})
+			all.addAll(new Runner(new OptionsBuilder().include(include).threads(t).build()).run());
+		results.getAbsoluteFile().getParentFile().mkdirs();
+		ResultFormatFactory.getInstance(ResultFormatType.JSON, results.getPath()).writeOut(all);
+	}
+}
@@ -0,0 +1,62 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Cost of a cache hit: looking up a class in the pack index and copying its bytes out of the mapping
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheReadBenchmark {
+	@Param({"1000", "20000"})
+	public int entries;
+
+	@Param({"4096"})
+	public int classSize;
+
+	private File dir;
+	private PackFile pack;
+	private String[] names;
+	private String[] missingNames;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("cache-read").toFile();
+		File file = new File(dir, "classes.pack");
+		PackFile writing = PackFile.open(file, (path, state) -> true);
+		names = new String[entries];
+		for (int i = 0; i < entries; i++) {
+			names[i] = SyntheticClasses.name(i);
+			writing.append(new PackFile.Record(PackFile.TYPE_CLASS, names[i], PackFile.NO_SOURCE, 0, 0, SyntheticClasses.emptyClass(names[i], classSize)));
+		}
+		writing.close();
+		missingNames = new String[entries];
+		for (int i = 0; i < entries; i++)
+			missingNames[i] = "bench.Missing" + i;
+		pack = PackFile.open(file, (path, state) -> true);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		pack.close();
+		SyntheticClasses.delete(dir);
+	}
+
+	@Benchmark
+	public byte[] hit() {
+		return pack.data(pack.find(names[ThreadLocalRandom.current().nextInt(entries)]));
+	}
+
+	@Benchmark
+	public int miss() {
+		return pack.find(missingNames[ThreadLocalRandom.current().nextInt(entries)]);
+	}
+}
@@ -0,0 +1,47 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Scanning a synthetic server directory for the cache state, both from scratch as on startup and rescanning an
+ * unchanged tree as at launch
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheStateBenchmark {
+	@Param({"100", "1000"})
+	public int jars;
+
+	private File base;
+	private CacheState state;
+
+	@Setup
+	public void setup() throws IOException {
+		base = Files.createTempDirectory("cache-state").toFile().getCanonicalFile();
+		SyntheticClasses.writeServerTree(base, jars);
+		state = new CacheState(base);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		SyntheticClasses.delete(base);
+	}
+
+	@Benchmark
+	public CacheState scan() {
+		return new CacheState(base);
+	}
+
+	@Benchmark
+	public CacheState rescan() {
+		return state.rescan(base);
+	}
+}
@@ -0,0 +1,60 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Cost to a class loading thread of saving a transformed class, in batches large enough to fill the writer's queue so
+ * back-pressure from the writer thread is included
+ * <p>
+ * Each iteration writes to a new pack so the file doesn't grow for the whole run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = 10000)
+@Measurement(iterations = 10, batchSize = 10000)
+@Fork(1)
+public class CacheWriteBenchmark {
+	@Param({"4096"})
+	public int classSize;
+
+	private final AtomicInteger next = new AtomicInteger();
+	private File dir;
+	private PackFile pack;
+	private CacheWriter writer;
+	private byte[] data;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("cache-write").toFile();
+		data = SyntheticClasses.emptyClass(SyntheticClasses.name(0), classSize);
+	}
+
+	@Setup(Level.Iteration)
+	public void openPack() {
+		pack = PackFile.open(new File(dir, "classes.pack"), (path, state) -> true);
+		writer = new CacheWriter(pack, Math.max(16, PropertyLoader.writeQueueSize()), false);
+	}
+
+	@TearDown(Level.Iteration)
+	public void closePack() throws IOException {
+		writer.close();
+		pack.close();
+		Files.delete(new File(dir, "classes.pack").toPath());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		SyntheticClasses.delete(dir);
+	}
+
+	@Benchmark
+	public void submit() {
+		writer.submit(new PackFile.Record(PackFile.TYPE_CLASS, SyntheticClasses.name(next.getAndIncrement()), PackFile.NO_SOURCE, 0, 0, data));
+	}
+}
@@ -0,0 +1,99 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compares the pack codecs on real class files: cache hit cost including decompression, and compression cost on the
+ * writer thread. The raw and pack size for each codec are reported as the rawBytes and packBytes secondary results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	/**
+	 * Codec and compression level, stored is only measured once as it ignores the level
+	 */
+	@Param({"stored", "deflate-1", "deflate-6", "deflate-9", "dictionary-1", "dictionary-6", "dictionary-9"})
+	public String codec;
+
+	@Param({"4000"})
+	public int classes;
+
+	private File dir;
+	private PackFile pack;
+	private PackCodec writeCodec;
+	private List<byte[]> data;
+	private String[] names;
+	private long rawBytes;
+	private long packBytes;
+
+	@Setup
+	public void setup() throws IOException {
+		data = SyntheticClasses.jdkClasses(classes);
+		dir = Files.createTempDirectory("codec").toFile();
+		File file = new File(dir, "classes.pack");
+		String[] codecAndLevel = codec.split("-");
+		PackCodec.Mode mode = PackCodec.Mode.valueOf(codecAndLevel[0].toUpperCase(Locale.ENGLISH));
+		int level = codecAndLevel.length > 1 ? Integer.parseInt(codecAndLevel[1]) : 0;
+		PackFile writing = PackFile.open(file, (path, state) -> true);
+		writing.setCodec(new PackCodec(mode, level));
+		names = new String[data.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = SyntheticClasses.name(i);
+			writing.append(new PackFile.Record(PackFile.TYPE_CLASS, names[i], PackFile.NO_SOURCE, 0, 0, data.get(i)));
+			rawBytes += data.get(i).length;
+		}
+		writing.close();
+		packBytes = file.length();
+		pack = PackFile.open(file, (path, state) -> true);
+
+		// Trained and ready, as it would be on the writer thread once the first classes have been cached
+		writeCodec = new PackCodec(mode, level);
+		if (mode == PackCodec.Mode.DICTIONARY)
+			writeCodec.useDictionary(PackCodec.train(data));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		pack.close();
+		SyntheticClasses.delete(dir);
+	}
+
+	@Benchmark
+	public byte[] hit(PackSize size) {
+		return pack.data(pack.find(names[ThreadLocalRandom.current().nextInt(names.length)]));
+	}
+
+	@Benchmark
+	public byte[] compress(PackSize size) {
+		synchronized (writeCodec) {
+			return writeCodec.compress(data.get(ThreadLocalRandom.current().nextInt(data.size())));
+		}
+	}
+
+	/**
+	 * Reports the pack size alongside each result. JMH sums counters over threads, so only the first thread reports it.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class PackSize {
+		public long rawBytes;
+		public long packBytes;
+
+		@Setup(Level.Iteration)
+		public void setup(CodecBenchmark benchmark, ThreadParams threads) {
+			boolean first = threads.getThreadIndex() == 0;
+			rawBytes = first ? benchmark.rawBytes : 0;
+			packBytes = first ? benchmark.packBytes : 0;
+		}
+	}
+}
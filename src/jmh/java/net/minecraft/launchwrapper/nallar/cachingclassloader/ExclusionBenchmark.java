@@ -0,0 +1,71 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Per-lookup cost of exclusion matching as the number of exclusions grows, compared with the linear startsWith scan
+ * over all three sets which LaunchClassLoader used before
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExclusionBenchmark {
+	@Param({"10", "100", "1000"})
+	public int exclusionCount;
+
+	private Exclusions exclusions;
+	private List<Set<String>> sets;
+	private String[] names;
+
+	@Setup
+	public void setup() {
+		exclusions = new Exclusions();
+		sets = Arrays.asList(exclusions.set(Exclusions.CLASS_LOADER), exclusions.set(Exclusions.DOUBLE_LOAD), exclusions.set(Exclusions.TRANSFORMER));
+		Random random = new Random(0);
+		for (int i = 0; i < exclusionCount; i++)
+			sets.get(i % 3).add("com.example" + random.nextInt(exclusionCount * 4) + ".mod" + i + '.');
+
+		// Mix of excluded and non-excluded names, most real lookups are not excluded
+		names = new String[1024];
+		for (int i = 0; i < names.length; i++)
+			names[i] = i % 8 == 0 ? "com.example" + random.nextInt(exclusionCount * 4) + ".mod" + random.nextInt(exclusionCount) + ".SomeClass"
+				: "net.minecraft.entity.passive.EntityClass" + i;
+		exclusions.match("");
+	}
+
+	private String nextName(Cursor cursor) {
+		return names[cursor.next++ & (names.length - 1)];
+	}
+
+	@Benchmark
+	public int trie(Cursor cursor) {
+		return exclusions.match(nextName(cursor));
+	}
+
+	@Benchmark
+	public int linearScan(Cursor cursor) {
+		String name = nextName(cursor);
+		int result = 0;
+		for (int i = 0; i < sets.size(); i++)
+			for (String exclusion : sets.get(i))
+				if (name.startsWith(exclusion)) {
+					result |= 1 << i;
+					break;
+				}
+		return result;
+	}
+
+	/**
+	 * Position in names, per thread so threads don't share a counter
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+}
@@ -0,0 +1,85 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import net.minecraft.launchwrapper.IClassTransformer;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * LaunchClassLoader.findClass for classes from a synthetic jar with stub transformers registered, either with the
+ * transformed classes already in the cache (hit) or with an empty cache (miss)
+ * <p>
+ * Only one LaunchClassLoader can exist per JVM and each class can only be defined once, so every trial is forked and the
+ * jar contains a class for every invocation. Must be run with the working directory set to a scratch directory, as the
+ * cache is always created in ./CachingClassLoader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = 1000)
+@Measurement(iterations = 10, batchSize = 1000)
+@Fork(1)
+public class FindClassBenchmark {
+	private static final int TRANSFORMERS = 3;
+
+	@Param({"hit", "miss"})
+	public String path;
+
+	@Param({"4096"})
+	public int classSize;
+
+	private final AtomicInteger next = new AtomicInteger();
+	private LaunchClassLoader classLoader;
+
+	@Setup
+	public void setup(BenchmarkParams params) throws IOException {
+		int classes = params.getThreads() * (params.getWarmup().getCount() * params.getWarmup().getBatchSize() + params.getMeasurement().getCount() * params.getMeasurement().getBatchSize());
+		File cacheDir = new File("CachingClassLoader").getAbsoluteFile();
+		SyntheticClasses.delete(cacheDir);
+		cacheDir.mkdirs();
+		File jar = new File(cacheDir.getParentFile(), "synthetic-classes.jar");
+		SyntheticClasses.writeJar(jar, classes, classSize);
+
+		if ("hit".equals(path))
+			populateCache(cacheDir, jar, classes);
+
+		classLoader = new LaunchClassLoader(new URL[]{jar.toURI().toURL()});
+		for (int i = 0; i < TRANSFORMERS; i++)
+			classLoader.registerTransformer(StubTransformer.class.getName());
+	}
+
+	/**
+	 * Writes the pack and cache state a previous run with the same jar and transformers would have left
+	 */
+	private void populateCache(File cacheDir, File jar, int classes) throws IOException {
+		new CacheState(cacheDir.getCanonicalFile().getParentFile()).writeToFile(new File(cacheDir, "cachestate.dat"));
+
+		List<IClassTransformer> transformers = new ArrayList<>();
+		for (int i = 0; i < TRANSFORMERS; i++)
+			transformers.add(new StubTransformer());
+		TransformerChain chain = TransformerChain.of(transformers);
+
+		URL resource = new URL("jar:" + jar.toURI().toURL() + "!/" + SyntheticClasses.name(0).replace('.', '/') + ".class");
+		PackFile pack = PackFile.open(new File(cacheDir, "classes.pack"), (p, state) -> true);
+		pack.append(new PackFile.Record(PackFile.TYPE_SOURCE, SourceJars.fileFor(resource).getPath(), 0, 0, 0, SourceMetadata.describe(jar, resource)));
+		for (int i = 0; i < classes; i++) {
+			String name = SyntheticClasses.name(i);
+			byte[] bytes = SyntheticClasses.emptyClass(name, classSize);
+			for (IClassTransformer transformer : transformers)
+				bytes = transformer.transform(name, name, bytes);
+			pack.append(new PackFile.Record(PackFile.TYPE_CLASS, name, 0, chain.length(), chain.hash(), bytes));
+		}
+		pack.close();
+	}
+
+	@Benchmark
+	public Class<?> findClass() throws ClassNotFoundException {
+		return classLoader.findClass(SyntheticClasses.name(next.getAndIncrement()));
+	}
+}
@@ -0,0 +1,13 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import net.minecraft.launchwrapper.IClassTransformer;
+
+/**
+ * Transformer which returns a copy of the class, standing in for a cheap real transformer
+ */
+public class StubTransformer implements IClassTransformer {
+	@Override
+	public byte[] transform(String name, String transformedName, byte[] basicClass) {
+		return basicClass == null ? null : basicClass.clone();
+	}
+}
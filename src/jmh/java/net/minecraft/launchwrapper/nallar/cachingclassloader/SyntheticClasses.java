@@ -0,0 +1,132 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.jar.*;
+
+/**
+ * Generates class files and directory trees for benchmarks which need many distinct classes or jars
+ */
+final class SyntheticClasses {
+	static final String PACKAGE = "bench";
+
+	private SyntheticClasses() {
+	}
+
+	static String name(int index) {
+		return PACKAGE + ".Synthetic" + index;
+	}
+
+	/**
+	 * @return a valid empty class extending Object, padded with an unused constant to roughly size bytes
+	 */
+	static byte[] emptyClass(String name, int size) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(size + 64);
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(52);
+		out.writeShort(6);
+		out.writeByte(1);
+		out.writeUTF(name.replace('.', '/'));
+		out.writeByte(7);
+		out.writeShort(1);
+		out.writeByte(1);
+		out.writeUTF("java/lang/Object");
+		out.writeByte(7);
+		out.writeShort(3);
+		char[] padding = new char[Math.max(0, Math.min(size, 65535))];
+		Arrays.fill(padding, 'x');
+		out.writeByte(1);
+		out.writeUTF(new String(padding));
+		out.writeShort(0x0021);
+		out.writeShort(2);
+		out.writeShort(4);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+		return bos.toByteArray();
+	}
+
+	static void writeJar(File jar, int classes, int size) throws IOException {
+		try (JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jar)), new Manifest())) {
+			for (int i = 0; i < classes; i++) {
+				String name = name(i);
+				out.putNextEntry(new JarEntry(name.replace('.', '/') + ".class"));
+				out.write(emptyClass(name, size));
+				out.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Lays out jars as a server directory would, half as mods and half as maven style libraries
+	 */
+	static void writeServerTree(File base, int jars) throws IOException {
+		File mods = new File(base, "mods");
+		mods.mkdirs();
+		for (int i = 0; i < jars; i++) {
+			File jar;
+			if (i % 2 == 0) {
+				jar = new File(mods, "mod" + i + ".jar");
+			} else {
+				File version = new File(base, "libraries/com/example/group" + (i % 16) + "/artifact" + i + "/1.0");
+				version.mkdirs();
+				jar = new File(version, "artifact" + i + "-1.0.jar");
+			}
+			Files.write(jar.toPath(), new byte[i % 1024]);
+		}
+	}
+
+	/**
+	 * Synthetic classes are mostly padding, so compression benchmarks use the running JDK's own classes instead
+	 *
+	 * @return up to count class files from the JDK, from rt.jar on Java 8 or the jrt filesystem on later versions
+	 */
+	static List<byte[]> jdkClasses(int count) throws IOException {
+		List<byte[]> classes = new ArrayList<>();
+		URL object = Object.class.getResource("Object.class");
+		if ("jar".equals(object.getProtocol())) {
+			String spec = object.toString();
+			try (JarFile jar = new JarFile(new File(URI.create(spec.substring(4, spec.indexOf("!/")))))) {
+				for (JarEntry entry : Collections.list(jar.entries())) {
+					if (classes.size() >= count)
+						break;
+					if (entry.getName().endsWith(".class"))
+						try (InputStream is = jar.getInputStream(entry)) {
+							classes.add(readFully(is));
+						}
+				}
+			}
+		} else {
+			FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+			try (java.util.stream.Stream<Path> paths = Files.walk(jrt.getPath("modules", "java.base"))) {
+				for (Path path : (Iterable<Path>) paths::iterator) {
+					if (classes.size() >= count)
+						break;
+					if (path.toString().endsWith(".class"))
+						classes.add(Files.readAllBytes(path));
+				}
+			}
+		}
+		return classes;
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = is.read(buffer)) != -1)
+			bos.write(buffer, 0, read);
+		return bos.toByteArray();
+	}
+
+	static void delete(File f) throws IOException {
+		if (!f.exists())
+			return;
+		Files.walk(f.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+	}
+}
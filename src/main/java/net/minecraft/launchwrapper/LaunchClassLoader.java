@@ -3,8 +3,18 @@ package net.minecraft.launchwrapper;
 import lombok.SneakyThrows;
 import lombok.val;
 import net.minecraft.launchwrapper.nallar.cachingclassloader.Cache;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.CacheBaker;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.CacheVerifier;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.ClassList;
 import net.minecraft.launchwrapper.nallar.cachingclassloader.CachingClassLoader;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.Exclusions;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.JarOpener;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.Metrics;
 import net.minecraft.launchwrapper.nallar.cachingclassloader.PropertyLoader;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.ResourceCache;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.SpeculativeTransformer;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.Tracer;
+import net.minecraft.launchwrapper.nallar.cachingclassloader.TransformerChain;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 
@@ -14,6 +24,7 @@ import java.net.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.jar.*;
 import java.util.jar.Attributes.*;
@@ -34,6 +45,8 @@ import java.util.jar.Attributes.*;
  * private field cachedClasses is empty on cached starts to workaround a sponge behaviour
  * private field negativeResourceCache has been removed (consolidated to single map for performance)
  * private field invalidClasses has been removed (consolidated to single map for performance)
+ * private field resourceCache is a size bounded map, and by default its positive entries are removed when the launch
+ * target is loaded and not stored after that
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class LaunchClassLoader extends URLClassLoader implements CachingClassLoader {
@@ -63,6 +76,7 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 	 */
 	private final ClassLoader parent = getClass().getClassLoader();
 	private final Cache cache = new Cache(new File("CachingClassLoader"));
+	private final CacheVerifier cacheVerifier = CacheVerifier.create(cache);
 	/**
 	 * Used to prevent minecraft classes from being loaded before Launch has actually launched the game
 	 */
@@ -72,13 +86,20 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 	private Map<String, Class<?>> cachedClasses_ = new ConcurrentHashMap<>();
 	//Vanilla one - kept normal on first starts, cached starts left empty, for sponge compat
 	private Map<String, Class<?>> cachedClasses = (!PropertyLoader.enableSpongeWorkarounds() || cache.isFreshStart()) ? cachedClasses_ : Collections.emptyMap();
-	private Set<String> classLoaderExceptions = new HashSet<>();
-	private Set<String> doubleLoadExceptions = new HashSet<>();
-	private Set<String> transformerExceptions = new HashSet<>();
+	private final Exclusions exclusions = new Exclusions();
+	private Set<String> classLoaderExceptions = exclusions.set(Exclusions.CLASS_LOADER);
+	private Set<String> doubleLoadExceptions = exclusions.set(Exclusions.DOUBLE_LOAD);
+	private Set<String> transformerExceptions = exclusions.set(Exclusions.TRANSFORMER);
 	// Misleadingly, this is keyed by class name, not resource name
 	// Kept that way for compat with standard LCL
-	private Map<String, byte[]> resourceCache = new ConcurrentHashMap<>();
+	// Bounded by resourceCacheMaxMegabytes, negative entries are the BYTE_CACHE_ERRORED sentinel (an empty array)
+	private Map<String, byte[]> resourceCache = new ResourceCache(PropertyLoader.resourceCacheMaxMegabytes() * 1024L * 1024L);
 	private IClassNameTransformer renameTransformer;
+	private SpeculativeTransformer speculativeTransformer;
+	/**
+	 * Set when the launch target is loaded with --bakeCache
+	 */
+	private final AtomicBoolean bakePending = new AtomicBoolean();
 
 	@SneakyThrows
 	public LaunchClassLoader(URL[] sources) {
@@ -88,6 +109,10 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 		System.setProperty(CACHING_CLASS_LOADER_LOADED, "true");
 
 		this.sources = new ArrayList<>(Arrays.asList(sources));
+		for (val source : sources)
+			JarOpener.open(source);
+		for (val source : sources)
+			cache.getResourceIndex().add(source);
 
 		// classloader exclusions
 		addClassLoaderExclusion("argo.");
@@ -165,14 +190,6 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 		return name.replace('.', '/') + ".class";
 	}
 
-	private static boolean excluded(String name, Set<String> exceptions) {
-		for (val exception : exceptions)
-			if (name.startsWith(exception))
-				return true;
-
-		return false;
-	}
-
 	private static void addExclusion(Set<String> set, String toExclude) {
 		if (toExclude == null || toExclude.isEmpty() || toExclude.contains("/"))
 			throw new IllegalArgumentException("toExclude: '" + toExclude + "'");
@@ -205,6 +222,8 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 		try {
 			val transformer = (IClassTransformer) loadClass(transformerClassName).newInstance();
 			transformers.add(transformer);
+			// Fingerprint the new transformer's jar now rather than during the next class load
+			TransformerChain.of(transformers);
 			if (transformer instanceof IClassNameTransformer)
 				if (renameTransformer == null)
 					renameTransformer = (IClassNameTransformer) transformer;
@@ -215,6 +234,24 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 		}
 	}
 
+	/**
+	 * With --bakeCache, bakes the cache and exits once the launch target has been loaded. This runs after the class
+	 * loading lock for the launch target is released, as transformers run by the baker may need to load it.
+	 */
+	@Override
+	protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+		val clazz = super.loadClass(name, resolve);
+		if (bakePending.get() && LAUNCH_TARGETS.contains(name) && bakePending.compareAndSet(true, false))
+			bakeAndExit();
+		return clazz;
+	}
+
+	private void bakeAndExit() {
+		CacheBaker.bake(cache, TransformerChain.of(transformers), sources, this::bakeableName, this::runTransformers);
+		LogWrapper.info("Finished baking class cache, exiting");
+		System.exit(0);
+	}
+
 	@Override
 	public Class<?> findClass(final String name) throws ClassNotFoundException {
 		val cached = cachedClasses_.get(name);
@@ -223,8 +260,12 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 		if (cached != null)
 			return cached;
 
-		if (excluded(name, classLoaderExceptions))
-			return parent.loadClass(name);
+		val excluded = exclusions.match(name);
+		if ((excluded & Exclusions.CLASS_LOADER) != 0) {
+			val clazz = parent.loadClass(name);
+			ClassList.record(clazz);
+			return clazz;
+		}
 
 		Class alreadyLoaded = null;
 		try {
@@ -239,11 +280,11 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 				LogWrapper.log(Level.ERROR, e, "");
 				throw e;
 			}
-			if (excluded(name, doubleLoadExceptions))
+			if ((excluded & Exclusions.DOUBLE_LOAD) != 0)
 				LogWrapper.severe("Non-excluded class %s has already been loaded by the parent classloader. It should be excluded or should not have been already loaded.", name);
 		}
 
-		if (excluded(name, transformerExceptions))
+		if ((excluded & Exclusions.TRANSFORMER) != 0)
 			try {
 				final Class<?> clazz = super.findClass(name);
 				if (clazz == null)
@@ -255,6 +296,13 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 				throw e;
 			}
 
+		if (cache.isKnownMissing(name, sources.size(), TransformerChain.of(transformers))) {
+			cachedClasses_.put(name, CLASS_CACHE_ERRORED);
+			throw new ClassNotFoundException(name);
+		}
+
+		val startTime = System.nanoTime();
+		Tracer.begin(Tracer.FIND_CLASS, name);
 		try {
 			val transformedName = transformName(name);
 			val untransformedName = untransformName(name);
@@ -269,6 +317,18 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 					allowMinecraftClassLoading = true;
 					cache.updateCacheState();
 					LogWrapper.info("Detected launch target load %s", name);
+					releaseResourceCache();
+					Metrics.logReport();
+					ClassList.write();
+					Tracer.write();
+					if (PropertyLoader.bakeCache()) {
+						// Baked by loadClass once this class is defined and its loading lock is released
+						bakePending.set(true);
+					} else {
+						speculativeTransformer = SpeculativeTransformer.start(cache, TransformerChain.of(transformers), this::transformAhead, this);
+						if (cacheVerifier != null)
+							cacheVerifier.start(this::readUntransformed);
+					}
 				} else if (transformedName.startsWith("net.minecraft.crash")) {
 					neverCache = PropertyLoader.enableSpongeWorkarounds();
 				} else if (!untransformedName.equals(transformedName) && transformedName.startsWith("net.minecraft.")) {
@@ -283,58 +343,106 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 			val pkg = getPackage(packageName);
 
 			val resourceName = classNameToResourceName(untransformedName);
-			val resource = findResource(resourceName);
+			val transformerChain = TransformerChain.of(transformers);
+			val cacheReadStart = System.nanoTime();
+			Tracer.begin(Tracer.CACHE_READ, null);
+			byte[] transformedClass;
+			try {
+				transformedClass = cache.getClassBytes(transformedName, transformerChain, resourceName, this::findResource);
+			} finally {
+				Tracer.end();
+			}
+			val needsCached = transformedClass == null;
+			if (needsCached)
+				Metrics.cacheMiss(System.nanoTime() - cacheReadStart);
+			else
+				Metrics.cacheHit(transformedClass.length, System.nanoTime() - cacheReadStart);
+			// Cache hits with stored source metadata are defined without opening or verifying the original jar
+			val cachedSource = needsCached || neverCache ? null : cache.getCachedSource(transformedName, resourceName);
 
+			URL resource;
 			CodeSigner[] signers = null;
 			byte[] classBytes = null;
-			if (lastDot > -1 && !untransformedName.startsWith("net.minecraft.")) {
-				URLConnection urlConnection = resource == null ? null : resource.openConnection();
-				if (urlConnection instanceof JarURLConnection) {
-					val jarURLConnection = (JarURLConnection) urlConnection;
-					val jarFile = jarURLConnection.getJarFile();
-
-					if (jarFile != null && jarFile.getManifest() != null) {
-						val manifest = jarFile.getManifest();
-						val entry = jarFile.getJarEntry(resourceName);
-
-						// signature verification only works if we've read the inputstream from the entry
-						// so we must call getClassBytes here, even if a cached transformed class is available
-						// see entry.getCodeSigners docs
-						classBytes = getClassBytes(untransformedName, resource);
-						signers = entry.getCodeSigners();
+			if (cachedSource != null) {
+				resource = cachedSource.getResource();
+				signers = cachedSource.getSigners();
+				val manifest = cachedSource.getMetadata().getManifest();
+				if (lastDot > -1 && !untransformedName.startsWith("net.minecraft.") && manifest != null)
+					definePackage(pkg, packageName, manifest, cachedSource.getMetadata().getJarUrl());
+			} else {
+				resource = findResource(resourceName);
+				if (lastDot > -1 && !untransformedName.startsWith("net.minecraft.")) {
+					URLConnection urlConnection = resource == null ? null : resource.openConnection();
+					if (urlConnection instanceof JarURLConnection) {
+						val jarURLConnection = (JarURLConnection) urlConnection;
+						val jarFile = jarURLConnection.getJarFile();
+
+						if (jarFile != null && jarFile.getManifest() != null) {
+							val manifest = jarFile.getManifest();
+							val entry = jarFile.getJarEntry(resourceName);
+
+							// signature verification only works if we've read the inputstream from the entry
+							// so we must call getClassBytes here when the cache doesn't have this class's signers
+							// see entry.getCodeSigners docs
+							classBytes = getClassBytes(untransformedName, resource);
+							signers = entry.getCodeSigners();
+							definePackage(pkg, packageName, manifest, jarURLConnection.getJarFileURL());
+						}
+					} else {
 						if (pkg == null) {
-							definePackage(packageName, manifest, jarURLConnection.getJarFileURL());
-						} else if (LOG_PACKAGE_TAMPERING) {
-							if (pkg.isSealed() && !pkg.isSealed(jarURLConnection.getJarFileURL())) {
-								LogWrapper.severe("The jar file %s is trying to seal already secured path %s", jarFile.getName(), packageName);
-							} else if (isSealed(packageName, manifest)) {
-								LogWrapper.severe("The jar file %s has a security seal for path %s, but that path is defined and not secure", jarFile.getName(), packageName);
-							}
+							definePackage(packageName, null, null, null, null, null, null, null);
+						} else if (LOG_PACKAGE_TAMPERING && pkg.isSealed()) {
+							LogWrapper.severe("The URL %s is defining elements for sealed path %s", resource, packageName);
 						}
 					}
-				} else {
-					if (pkg == null) {
-						definePackage(packageName, null, null, null, null, null, null, null);
-					} else if (LOG_PACKAGE_TAMPERING && pkg.isSealed()) {
-						LogWrapper.severe("The URL %s is defining elements for sealed path %s", resource, packageName);
-					}
 				}
 			}
 
-			byte[] transformedClass = cache.getClassBytes(transformedName);
-			val needsCached = transformedClass == null;
-			if (needsCached || neverCache)
-				transformedClass = runTransformers(untransformedName, transformedName, classBytes == null ? getClassBytes(untransformedName) : classBytes);
+			// Transformers may modify their input, so a copy is kept to check whether they changed the class
+			boolean unchanged = false;
+			if (needsCached || neverCache) {
+				val stage = neverCache ? null : cache.takeStage(transformedName, transformerChain, resource);
+				if (stage == null) {
+					val untransformed = classBytes == null ? getClassBytes(untransformedName) : classBytes;
+					val sharedKey = neverCache ? null : cache.sharedKey(transformedName, untransformed, transformerChain);
+					transformedClass = cache.getShared(sharedKey);
+					if (transformedClass == null) {
+						val original = untransformed == null ? null : untransformed.clone();
+						transformedClass = runTransformers(untransformedName, transformedName, untransformed, 0, neverCache ? null : resource);
+						unchanged = original != null && Arrays.equals(original, transformedClass);
+						cache.saveShared(sharedKey, transformedClass);
+					}
+				} else {
+					val original = stage.isUnchanged() ? stage.getBytes().clone() : null;
+					transformedClass = runTransformers(untransformedName, transformedName, stage.getBytes(), stage.getTransformers(), resource);
+					unchanged = original != null && Arrays.equals(original, transformedClass);
+				}
+			}
 
-			if (transformedClass == null)
+			if (transformedClass == null) {
+				if (resource == null && !neverCache)
+					cache.classMissing(transformedName, sources.size(), transformerChain);
 				throw new ClassNotFoundException(name + " could not be found to load");
+			}
 
-			val clazz = defineClass(transformedName, transformedClass, 0, transformedClass.length, resource == null ? null : new CodeSource(resource, signers));
+			val defineStart = System.nanoTime();
+			Tracer.begin(Tracer.DEFINE_CLASS, null);
+			Class<?> clazz;
+			try {
+				clazz = defineClass(transformedName, transformedClass, 0, transformedClass.length, resource == null ? null : new CodeSource(resource, signers));
+			} finally {
+				Tracer.end();
+			}
+			Metrics.defineClass(System.nanoTime() - defineStart);
 
 			cachedClasses_.put(transformedName, clazz);
+			cache.classDefined(transformedName);
 			if (needsCached)
-				cache.saveClassBytes(transformedName, transformedClass);
+				cache.saveClassBytes(transformedName, transformedClass, resource, signers, transformerChain, unchanged);
+			else if (cacheVerifier != null && !neverCache)
+				cacheVerifier.cacheHit(untransformedName, transformedName, transformedClass, transformerChain);
 
+			Metrics.findClass(transformedName, System.nanoTime() - startTime);
 			return clazz;
 		} catch (Throwable e) {
 			cachedClasses_.put(name, CLASS_CACHE_ERRORED);
@@ -343,6 +451,33 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 				LogManager.getLogger("LaunchWrapper").log(Level.ERROR, String.format("Exception encountered attempting classloading of %s", e));
 			}
 			throw new ClassNotFoundException(name, e);
+		} finally {
+			Tracer.end();
+		}
+	}
+
+	/**
+	 * Drops the untransformed bytes of classes loaded before launch, which are not needed again, and stops keeping the
+	 * bytes of classes read after it
+	 */
+	private void releaseResourceCache() {
+		val resourceCache = this.resourceCache;
+		if (!PropertyLoader.releaseResourceCacheAtLaunch() || !(resourceCache instanceof ResourceCache))
+			return;
+		val before = ((ResourceCache) resourceCache).getRetainedBytes();
+		((ResourceCache) resourceCache).releasePositiveEntries();
+		LogWrapper.info("Released %dKB of cached untransformed class bytes", (before - ((ResourceCache) resourceCache).getRetainedBytes()) / 1024);
+	}
+
+	private void definePackage(Package pkg, String packageName, Manifest manifest, URL jarUrl) {
+		if (pkg == null) {
+			definePackage(packageName, manifest, jarUrl);
+		} else if (LOG_PACKAGE_TAMPERING) {
+			if (pkg.isSealed() && !pkg.isSealed(jarUrl)) {
+				LogWrapper.severe("The jar file %s is trying to seal already secured path %s", jarUrl, packageName);
+			} else if (isSealed(packageName, manifest)) {
+				LogWrapper.severe("The jar file %s has a security seal for path %s, but that path is defined and not secure", jarUrl, packageName);
+			}
 		}
 	}
 
@@ -360,17 +495,108 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 		return resource == null ? null : resource.openConnection();
 	}
 
-	private byte[] runTransformers(final String name, final String transformedName, byte[] basicClass) {
-		for (final IClassTransformer transformer : transformers)
-			basicClass = transformer.transform(name, transformedName, basicClass);
+	private byte[] runTransformers(final String name, final String transformedName, byte[] basicClass, int firstTransformer, URL source) {
+		return runTransformers(name, transformedName, basicClass, firstTransformer, transformers.size(), source);
+	}
+
+	/**
+	 * @param source resource the class was loaded from, stage checkpoints are saved if this is not null
+	 */
+	private byte[] runTransformers(final String name, final String transformedName, byte[] basicClass, int firstTransformer, int lastTransformer, URL source) {
+		val chain = source == null ? null : TransformerChain.of(transformers);
+		for (int i = firstTransformer; i < lastTransformer; i++) {
+			val transformer = transformers.get(i);
+			val start = System.nanoTime();
+			Tracer.begin(Tracer.TRANSFORM, transformer.getClass().getName());
+			try {
+				basicClass = transformer.transform(name, transformedName, basicClass);
+			} finally {
+				Tracer.end();
+			}
+			Metrics.transform(transformer, System.nanoTime() - start);
+			if (chain != null && basicClass != null)
+				cache.saveStageCheckpoint(transformedName, basicClass, source, chain, i + 1);
+		}
 
 		return basicClass;
 	}
 
+	/**
+	 * @return transformed name of a class for {@link CacheBaker}, or null if it would not be cached when loaded
+	 */
+	private String bakeableName(final String untransformedName) {
+		val transformedName = transformName(untransformedName);
+		if ((exclusions.match(transformedName) & (Exclusions.CLASS_LOADER | Exclusions.TRANSFORMER)) != 0 || cachedClasses_.containsKey(transformedName))
+			return null;
+		if (PropertyLoader.enableSpongeWorkarounds() && (LAUNCH_TARGETS.contains(transformedName) || transformedName.startsWith("net.minecraft.crash")))
+			return null;
+		return transformedName;
+	}
+
+	/**
+	 * Reads a class from its source without going through the resource cache, for {@link CacheVerifier}
+	 */
+	private byte[] readUntransformed(final String name) throws IOException {
+		val resource = findResource(classNameToResourceName(name));
+		if (resource == null)
+			return null;
+		try (val is = resource.openStream()) {
+			val bytes = readFully(is);
+			return bytes.length == 0 ? null : bytes;
+		}
+	}
+
+	/**
+	 * Runs the first transformers over a class which has not been loaded yet, for {@link SpeculativeTransformer}
+	 */
+	private boolean transformAhead(final String transformedName, int transformerCount) throws IOException {
+		if (cachedClasses_.containsKey(transformedName))
+			return false;
+
+		val untransformedName = untransformName(transformedName);
+		val resource = findResource(classNameToResourceName(untransformedName));
+		if (resource == null)
+			return false;
+
+		val chain = TransformerChain.of(transformers);
+		byte[] bytes = getClassBytes(untransformedName, resource);
+		val original = bytes == null ? null : bytes.clone();
+		for (int i = 0; i < transformerCount && bytes != null; i++) {
+			val transformer = transformers.get(i);
+			val start = System.nanoTime();
+			Tracer.begin(Tracer.TRANSFORM, transformer.getClass().getName());
+			try {
+				bytes = transformer.transform(untransformedName, transformedName, bytes);
+			} finally {
+				Tracer.end();
+			}
+			Metrics.transform(transformer, System.nanoTime() - start);
+			if (bytes != null)
+				cache.saveStageCheckpoint(transformedName, bytes, resource, chain, i + 1);
+		}
+
+		if (bytes == null || cachedClasses_.containsKey(transformedName))
+			return false;
+
+		cache.saveStage(transformedName, bytes, resource, chain, transformerCount, Arrays.equals(original, bytes));
+		return true;
+	}
+
 	@Override
 	public void addURL(final URL url) {
 		super.addURL(url);
 		sources.add(url);
+		JarOpener.open(url);
+		cache.getResourceIndex().add(url);
+	}
+
+	@Override
+	public URL findResource(final String name) {
+		val start = System.nanoTime();
+		val resourceIndex = cache.getResourceIndex();
+		val resource = resourceIndex.canFind(name) ? resourceIndex.find(name) : super.findResource(name);
+		Metrics.findResource(System.nanoTime() - start);
+		return resource;
 	}
 
 	public List<URL> getSources() {
@@ -415,27 +641,33 @@ public class LaunchClassLoader extends URLClassLoader implements CachingClassLoa
 			return null;
 		}
 
+		val start = System.nanoTime();
 		try (val classStream = resource.openStream()) {
 			if (DEBUG) LogWrapper.finest("Loading class %s from resource %s", name, resource.toString());
 			val data = readFully(classStream);
 			resourceCache.put(name, data);
+			Metrics.sourceRead(data.length, System.nanoTime() - start);
 			return data;
 		}
 	}
 
 	public void clearNegativeEntries(Set<String> entriesToClear) {
+		val names = new ArrayList<String>(entriesToClear.size());
 		for (String entry : entriesToClear) {
 			entry = entry.replace('/', '.');
+			names.add(entry);
 			if (resourceCache.get(entry) == BYTE_CACHE_ERRORED)
 				resourceCache.remove(entry);
 			if (cachedClasses_.get(entry) == CLASS_CACHE_ERRORED)
 				cachedClasses_.remove(entry);
 		}
+		cache.clearMissing(names);
 	}
 
 	@Override
 	public void clearFailures(Function<String, Boolean> predicate) {
 		resourceCache.entrySet().removeIf((it) -> it.getValue() == BYTE_CACHE_ERRORED && predicate.apply(it.getKey()));
 		cachedClasses_.entrySet().removeIf((it) -> it.getValue() == CLASS_CACHE_ERRORED && predicate.apply(it.getKey()));
+		cache.clearMissing(predicate);
 	}
 }
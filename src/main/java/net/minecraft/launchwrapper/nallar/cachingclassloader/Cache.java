@@ -1,26 +1,78 @@
 package net.minecraft.launchwrapper.nallar.cachingclassloader;
 
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.val;
 import net.minecraft.launchwrapper.LaunchClassLoader;
 import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
 
 import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.zip.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 public class Cache {
-	private static final String nameFormat = "transformed-classes-%d.temp";
+	private static final String PACK_NAME = "classes.pack";
+	private static final String LOAD_ORDER_NAME = "loadorder.txt";
+	private static final String CACHE_STATE_NAME = "cachestate.dat";
+	private static final String USAGE_NAME = "usage.dat";
+	private static final int USAGE_VERSION = 1;
+	private static final String MISSING_NAME = "missing.dat";
 	private final File dir;
 	private final boolean enabled;
-	private Map<String, Callable<InputStream>> classes = new HashMap<>();
-	private ZipOutputStream nextCache;
-	private int cacheZipCount = 0;
-	private int cachedClasses = 0;
+	private final Map<String, Integer> sourceIds = new ConcurrentHashMap<>();
+	/**
+	 * Source ids of jars by jar: URL, for checking where a cached class would be loaded from now
+	 */
+	private final Map<String, Integer> sourceIdsByJarUrl = new ConcurrentHashMap<>();
+	private final Map<Integer, SourceMetadata> sourceMetadata = new ConcurrentHashMap<>();
+	/**
+	 * Deserialized code signers, by hash of their serialized form. Classes from one signed jar share the same signers.
+	 */
+	private final Map<Long, CodeSigner[]> signers = new ConcurrentHashMap<>();
+	private final AtomicInteger nextSourceId = new AtomicInteger();
+	private final LongAdder staleEntries = new LongAdder();
+	private final LongAdder unchangedClasses = new LongAdder();
+	private final LongAdder stageCheckpointHits = new LongAdder();
+	private final LongAdder evictedClasses = new LongAdder();
+	private final LongAdder shadowedEntries = new LongAdder();
+	private final Set<String> stageCheckpointTransformers = new HashSet<>(PropertyLoader.stageCheckpointTransformers());
+	/**
+	 * Transformed classes in the order they were first defined during this run
+	 */
+	private final Queue<String> loadOrder = new ConcurrentLinkedQueue<>();
+	private List<String> previousLoadOrder = Collections.emptyList();
+	/**
+	 * Number of this start, and the last start in which each cached class was loaded
+	 */
+	private int run;
+	private final Map<String, Integer> lastUsed = new ConcurrentHashMap<>();
+	/**
+	 * Results of speculative transformation which have not been used yet
+	 */
+	private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+	private PackFile pack;
+	private CacheWriter writer;
+	private Prefetcher prefetcher;
+	private PackCompactor compactor;
+	private SharedStore sharedStore;
+	private MissingClasses missingClasses;
+	/**
+	 * State last written to disk, and the latest scanned state which is rescanned at launch
+	 */
+	private CacheState savedState;
+	private CacheState currentState;
 	@Getter
 	private boolean isFreshStart;
+	@Getter
+	private final ResourceIndex resourceIndex;
 
 	@SneakyThrows
 	public Cache(File dir) {
@@ -31,111 +83,566 @@ public class Cache {
 		this.dir = dir;
 
 		enabled = PropertyLoader.enableCaching();
+		resourceIndex = new ResourceIndex(new File(dir, "resources.idx"), enabled && PropertyLoader.enableResourceIndex());
 		if (!enabled)
 			return;
 
-		val cacheStateFile = new File(dir, "cachestate.obj");
+		Fingerprints.load(dir);
+		val legacyCacheStateFile = new File(dir, "cachestate.obj");
+		if (legacyCacheStateFile.exists() && !legacyCacheStateFile.delete())
+			throw new IOException("Failed to delete old cache state at " + legacyCacheStateFile);
+
+		val cacheStateFile = new File(dir, CACHE_STATE_NAME);
 		val oldState = CacheState.readFromFile(cacheStateFile);
 		val newState = new CacheState(dir.getParentFile());
+		savedState = oldState;
+		currentState = newState;
 
-		val removeOld = isFreshStart = oldState == null || !oldState.equals(newState);
+		// Changed jars only invalidate entries loaded from them, everything is only removed if the cache key changes
+		val removeOld = isFreshStart = oldState == null || !oldState.getCacheKey().equals(newState.getCacheKey());
 		if (removeOld && cacheStateFile.exists() && !cacheStateFile.delete())
 			throw new IOException("Failed to delete cache state at " + cacheStateFile);
 
-		List<ZipFile> cacheZips = new ArrayList<>();
+		val packFile = new File(dir, PACK_NAME);
+		if (removeOld && packFile.exists() && !packFile.delete())
+			throw new IOException("Failed to delete old cached classes " + packFile);
+
+		// transformed-classes-N.jar files from older versions don't record the transformer chain or source jar of
+		// their classes, so can't be validated and are discarded
 		val files = dir.listFiles();
 		if (files != null)
 			for (val f : files) {
 				val name = f.getName().toLowerCase();
 				if (name.endsWith(".jar")) {
-					if (removeOld) {
-						if (!f.delete()) {
-							LogWrapper.severe("Unable to remove old cached classes %s", f);
-						}
-					} else {
-						cacheZips.add(new ZipFile(f));
-						cacheZipCount++;
-					}
-				} else if (name.endsWith(".tempjar") && !f.delete()) {
+					if (!f.delete())
+						LogWrapper.severe("Unable to remove old cached classes %s", f);
+				} else if ((name.endsWith(".tempjar") || name.endsWith(".temp")) && !f.delete()) {
 					throw new IOException("Failed to delete old temporary cached classes jar: " + f);
 				}
 			}
 
-		for (val zipFile : cacheZips)
-			for (val zipEntry : Collections.list(zipFile.entries()))
-				classes.put(zipEntry.getName(), () -> zipFile.getInputStream(zipEntry));
+		val validateSources = !PropertyLoader.onlyInvalidateCacheUsingCacheKey();
+		pack = PackFile.open(packFile, (path, state) -> !validateSources || SourceJars.matches(path, state));
+		pack.setCodec(PackCodec.fromProperties());
+		sourceIds.putAll(pack.getSources());
+		for (val e : pack.getSourceData().entrySet()) {
+			val metadata = SourceMetadata.read(e.getValue());
+			if (metadata != null)
+				sourceMetadata.put(e.getKey(), metadata);
+		}
+		nextSourceId.set(pack.getNextSourceId());
+		writer = new CacheWriter(pack, Math.max(16, PropertyLoader.writeQueueSize()), PropertyLoader.bakeCache());
+
+		readUsage(new File(dir, USAGE_NAME), removeOld);
+		missingClasses = new MissingClasses(new File(dir, MISSING_NAME), newState.stateKey());
+
+		val sharedDirectory = PropertyLoader.sharedCacheDirectory();
+		if (!sharedDirectory.isEmpty() && PropertyLoader.onlyInvalidateCacheUsingCacheKey())
+			LogWrapper.warning("Not using sharedCacheDirectory as onlyInvalidateCacheUsingCacheKey is set, so jar contents can't be compared between servers");
+		else if (!sharedDirectory.isEmpty())
+			sharedStore = SharedStore.open(new File(sharedDirectory), newState.packKey(dir.getParentFile()));
+
+		val loadOrderFile = new File(dir, LOAD_ORDER_NAME);
+		if (loadOrderFile.exists())
+			previousLoadOrder = Files.readAllLines(loadOrderFile.toPath());
+
+		val prefetchThreads = PropertyLoader.prefetchThreads();
+		if (prefetchThreads > 0 && pack.size() > 0 && !previousLoadOrder.isEmpty())
+			prefetcher = new Prefetcher(pack, previousLoadOrder, prefetchThreads, PropertyLoader.prefetchBufferMegabytes() * 1024L * 1024L);
 
 		if (removeOld) {
 			newState.writeToFile(cacheStateFile);
-			LogWrapper.info("Cleared cached transformed classes as cache states did not match.\nBefore: " + oldState + "\nAfter: " + newState);
+			savedState = newState;
+			LogWrapper.info("Cleared cached transformed classes as cache keys did not match.\nBefore: " + oldState + "\nAfter: " + newState);
+		} else if (!newState.equals(oldState)) {
+			newState.writeToFile(cacheStateFile);
+			savedState = newState;
 		}
 
-		LogWrapper.info("Loaded " + classes.size() + " cached transformed classes from " + cacheZipCount + " jar" + (cacheZipCount == 1 ? "" : "s") + ".");
+		LogWrapper.info("Loaded " + pack.size() + " cached transformed classes from " + packFile.getName() + ". Kept " + pack.getSources().size() + " source jar" + (pack.getSources().size() == 1 ? "" : "s") + ", dropped " + pack.getDropped() + " cached classes from " + pack.getDroppedSources() + " changed source jar" + (pack.getDroppedSources() == 1 ? "" : "s") + ".");
 
 		Runtime.getRuntime().addShutdownHook(new Thread(this::closeCurrentCache, "CachingClassLoader saver"));
 	}
 
 	public void updateCacheState() {
-		val cacheStateFile = new File(dir, "cachestate.obj");
-		val oldState = CacheState.readFromFile(cacheStateFile);
-		val newState = new CacheState(dir.getParentFile());
+		if (!enabled)
+			return;
 
-		if (!newState.equals(oldState))
-			newState.writeToFile(cacheStateFile);
+		if (PropertyLoader.compactCache() && compactor == null)
+			compactor = PackCompactor.start(pack, new File(dir, PACK_NAME + ".compact.temp"), previousLoadOrder, this::isRecentlyUsed);
+
+		val newState = currentState.rescan(dir.getParentFile());
+		if (!newState.equals(savedState)) {
+			newState.writeToFile(new File(dir, CACHE_STATE_NAME));
+			savedState = newState;
+		}
+		currentState = newState;
+		Fingerprints.save();
+		resourceIndex.save();
 	}
 
+	/**
+	 * @param resourceName resource name of the untransformed class. An entry from another source than the one this
+	 * now resolves to is not used, as a jar earlier in the search order may now shadow the one the class was cached from.
+	 * @param findResource finds the resource when the resource index can't answer
+	 */
+	public byte[] getClassBytes(String name, TransformerChain chain, String resourceName, Function<String, URL> findResource) {
+		if (!enabled)
+			return null;
+
+		val offset = pack.find(name);
+		if (offset != 0) {
+			if (!chain.matches(pack.chainLength(offset), pack.chainHash(offset))) {
+				staleEntries.increment();
+			} else if (!resolvesTo(resourceName, pack.sourceId(offset), findResource)) {
+				shadowedEntries.increment();
+			} else {
+				if (pack.type(offset) == PackFile.TYPE_REFERENCE)
+					return readReference(offset);
+				val prefetched = prefetcher == null ? null : prefetcher.take(name);
+				return prefetched == null ? pack.data(offset) : prefetched;
+			}
+			if (prefetcher != null)
+				prefetcher.discard(name);
+		}
+
+		if (stages.isEmpty())
+			return null;
+		val stage = stages.get(name);
+		if (stage != null && chain.matches(stage.transformers, stage.chainHash) && stages.remove(name, stage))
+			return stage.bytes;
+		return null;
+	}
+
+	/**
+	 * @return whether the first resource with this name on the search path is in the source with this id. Answered
+	 * from the resource index without opening any jar where possible.
+	 */
+	private boolean resolvesTo(String resourceName, int sourceId, Function<String, URL> findResource) {
+		if (!resourceIndex.canFind(resourceName))
+			return resolvesTo(findResource.apply(resourceName), sourceId);
+		val jar = resourceIndex.findJar(resourceName);
+		val id = jar == null ? null : sourceIds.get(jar);
+		return id != null && id == sourceId;
+	}
+
+	/**
+	 * @return whether a resource is in the source with this id, or is not in a jar if the id is NO_SOURCE
+	 */
+	private boolean resolvesTo(URL resource, int sourceId) {
+		if (resource == null)
+			return false;
+		if (!"jar".equals(resource.getProtocol()))
+			return sourceId == PackFile.NO_SOURCE;
+		val spec = resource.toString();
+		val separator = spec.indexOf("!/");
+		val jarUrl = separator == -1 ? spec : spec.substring(0, separator);
+		// Not memoised while unknown, as the jar is given an id once a class from it is cached
+		val id = sourceIdsByJarUrl.computeIfAbsent(jarUrl, k -> {
+			val jar = SourceJars.fileFor(resource);
+			return jar == null ? null : sourceIds.get(jar.getPath());
+		});
+		return id == null ? sourceId == PackFile.NO_SOURCE && SourceJars.fileFor(resource) == null : id == sourceId;
+	}
+
+	/**
+	 * @return the unchanged class bytes from the source jar entry a REFERENCE record points to, or null if they can't
+	 * be read
+	 */
+	private byte[] readReference(int offset) {
+		val metadata = sourceMetadata.get(pack.sourceId(offset));
+		val resource = metadata == null ? null : metadata.getResource(new String(pack.data(offset), StandardCharsets.UTF_8));
+		if (resource == null)
+			return null;
+		try (val is = resource.openStream()) {
+			val bytes = LaunchClassLoader.readFully(is);
+			return bytes.length == 0 ? null : bytes;
+		} catch (IOException e) {
+			LogWrapper.fine("Unable to read unchanged class from %s: %s", resource, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return key of this class in the shared store, or null if there is no shared store. Must be computed before
+	 * transforming, as transformers may modify the untransformed bytes.
+	 */
+	public byte[] sharedKey(String name, byte[] untransformed, TransformerChain chain) {
+		if (sharedStore == null || untransformed == null)
+			return null;
+		return sharedStore.key(name, chain, untransformed);
+	}
+
+	/**
+	 * @return the transformed class from the shared store, or null if it isn't there
+	 */
+	public byte[] getShared(byte[] key) {
+		return key == null ? null : sharedStore.get(key);
+	}
+
+	public void saveShared(byte[] key, byte[] contents) {
+		if (key != null && contents != null)
+			sharedStore.put(key, contents);
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	boolean isCached(String name, TransformerChain chain) {
+		if (!enabled)
+			return false;
+		val offset = pack.find(name);
+		return offset != 0 && chain.matches(pack.chainLength(offset), pack.chainHash(offset));
+	}
+
+	/**
+	 * @return where the cached class returned by the last {@link #getClassBytes} call for this name came from, or null
+	 * if that isn't known and the class must be defined using its original resource
+	 */
 	@SneakyThrows
-	public byte[] getClassBytes(String name) {
+	public CachedSource getCachedSource(String name, String resourceName) {
 		if (!enabled)
 			return null;
 
-		val isCallable = classes.get(name);
-		if (isCallable == null)
+		val offset = pack.find(name);
+		if (offset == 0)
+			return null;
+		val metadata = sourceMetadata.get(pack.sourceId(offset));
+		if (metadata == null)
+			return null;
+		val resource = metadata.getResource(resourceName);
+		if (resource == null)
 			return null;
 
-		try (val is = isCallable.call()) {
-			return LaunchClassLoader.readFully(is);
+		CodeSigner[] classSigners = null;
+		if (metadata.isSigned()) {
+			val signersOffset = pack.find(PackFile.TYPE_SIGNERS, name);
+			if (signersOffset == 0)
+				return null;
+			val data = pack.data(signersOffset);
+			if (data.length != 0)
+				classSigners = signers.computeIfAbsent(Hashes.hash(data), hash -> deserializeSigners(data));
+		}
+		return new CachedSource(metadata, resource, classSigners);
+	}
+
+	@SneakyThrows
+	private static CodeSigner[] deserializeSigners(byte[] data) {
+		try (val is = new ObjectInputStream(new ByteArrayInputStream(data))) {
+			return (CodeSigner[]) is.readObject();
 		}
 	}
 
 	@SneakyThrows
-	public synchronized void saveClassBytes(String name, byte[] contents) {
+	private static byte[] serializeSigners(CodeSigner[] signers) {
+		if (signers == null)
+			return new byte[0];
+		val bos = new ByteArrayOutputStream();
+		try (val os = new ObjectOutputStream(bos)) {
+			os.writeObject(signers);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * @param source  URL of the class resource the untransformed class was loaded from, may be null
+	 * @param signers code signers of the class resource, stored if the source jar is signed
+	 * @param chain   transformers which produced these contents
+	 */
+	public void saveClassBytes(String name, byte[] contents, URL source, CodeSigner[] signers, TransformerChain chain) {
+		saveClassBytes(name, contents, source, signers, chain, false);
+	}
+
+	/**
+	 * @param unchanged whether the transformers returned the class from the source unchanged, in which case only a
+	 *                  reference to the source is stored if it is a jar
+	 */
+	public void saveClassBytes(String name, byte[] contents, URL source, CodeSigner[] signers, TransformerChain chain, boolean unchanged) {
 		if (!enabled)
 			return;
 
-		if (cachedClasses > 5000) {
-			closeCurrentCache();
+		val sourceId = sourceId(source);
+		writer.submit(classRecord(name, contents, source, sourceId, chain.length(), chain.hash(), unchanged));
+		val metadata = sourceMetadata.get(sourceId);
+		if (metadata != null && metadata.isSigned())
+			writer.submit(new PackFile.Record(PackFile.TYPE_SIGNERS, name, sourceId, 0, 0, serializeSigners(signers)));
+	}
+
+	/**
+	 * @return the output of a speculative partial transformation of this class which is still valid for the given
+	 * chain, or null if there is none
+	 */
+	public Stage takeStage(String name, TransformerChain chain, URL resource) {
+		val stage = stages.isEmpty() ? null : stages.remove(name);
+		val speculative = stage != null && stage.transformers < chain.length() && chain.matchesPrefix(stage.transformers, stage.chainHash) ? stage : null;
+		val checkpoint = findStageCheckpoint(name, chain, resource, speculative == null ? 0 : speculative.transformers);
+		return checkpoint == null ? speculative : checkpoint;
+	}
+
+	/**
+	 * @return the deepest stage checkpoint of this class after more than minLength transformers which is valid for
+	 * the chain, or null if there is none
+	 */
+	private Stage findStageCheckpoint(String name, TransformerChain chain, URL resource, int minLength) {
+		if (!enabled || stageCheckpointTransformers.isEmpty())
+			return null;
+		for (int length = chain.length() - 1; length > minLength; length--) {
+			if (!isStageCheckpoint(chain, length))
+				continue;
+			val offset = pack.find(PackFile.TYPE_STAGE, stageName(name, length));
+			if (offset != 0 && chain.matchesPrefix(pack.chainLength(offset), pack.chainHash(offset)) && resolvesTo(resource, pack.sourceId(offset))) {
+				stageCheckpointHits.increment();
+				return new Stage(pack.data(offset), length, pack.chainHash(offset), false);
+			}
+		}
+		return null;
+	}
+
+	private boolean isStageCheckpoint(TransformerChain chain, int length) {
+		return length > 0 && length < chain.length() && stageCheckpointTransformers.contains(chain.transformers[length - 1].getClass().getName());
+	}
+
+	/**
+	 * Caches the output of the first transformers of the chain if the last of them is one of the
+	 * stageCheckpointTransformers, so a change to a later transformer doesn't rerun them
+	 */
+	public void saveStageCheckpoint(String name, byte[] contents, URL source, TransformerChain chain, int transformers) {
+		if (!enabled || stageCheckpointTransformers.isEmpty() || !isStageCheckpoint(chain, transformers))
+			return;
+		// Later transformers may modify the array
+		writer.submit(new PackFile.Record(PackFile.TYPE_STAGE, stageName(name, transformers), sourceId(source), transformers, chain.hash(transformers), contents.clone()));
+	}
+
+	/**
+	 * Replaces a cached class and its stage checkpoints with tombstones, so it is transformed again next start
+	 */
+	void evict(String name, TransformerChain chain) {
+		if (!enabled)
+			return;
+
+		val offset = pack.find(name);
+		writer.submit(new PackFile.Record(PackFile.TYPE_CLASS, name, offset == 0 ? PackFile.NO_SOURCE : pack.sourceId(offset), PackFile.EVICTED, 0, new byte[0]));
+		for (int length = 1; length < chain.length(); length++) {
+			val stageName = stageName(name, length);
+			val stageOffset = pack.find(PackFile.TYPE_STAGE, stageName);
+			if (stageOffset != 0 || isStageCheckpoint(chain, length))
+				writer.submit(new PackFile.Record(PackFile.TYPE_STAGE, stageName, stageOffset == 0 ? PackFile.NO_SOURCE : pack.sourceId(stageOffset), PackFile.EVICTED, 0, new byte[0]));
+		}
+		evictedClasses.increment();
+	}
+
+	private static String stageName(String name, int transformers) {
+		return name + ':' + transformers;
+	}
+
+	/**
+	 * @return name of the class a STAGE record belongs to
+	 */
+	static String stageClassName(String stageName) {
+		return stageName.substring(0, stageName.lastIndexOf(':'));
+	}
+
+	/**
+	 * Stores the output of running a class through the first transformers of the chain, ahead of it being loaded.
+	 * Complete outputs are also written to the cache.
+	 */
+	public void saveStage(String name, byte[] contents, URL source, TransformerChain chain, int transformers, boolean unchanged) {
+		if (!enabled)
+			return;
+
+		val chainHash = chain.hash(transformers);
+		stages.put(name, new Stage(contents, transformers, chainHash, unchanged));
+		if (transformers == chain.length())
+			writer.submit(classRecord(name, contents, source, sourceId(source), transformers, chainHash, unchanged));
+	}
+
+	private PackFile.Record classRecord(String name, byte[] contents, URL source, int sourceId, int chainLength, long chainHash, boolean unchanged) {
+		if (unchanged && sourceMetadata.containsKey(sourceId)) {
+			val spec = source.toString();
+			val entry = spec.substring(spec.indexOf("!/") + 2);
+			unchangedClasses.increment();
+			return new PackFile.Record(PackFile.TYPE_REFERENCE, name, sourceId, chainLength, chainHash, entry.getBytes(StandardCharsets.UTF_8));
+		}
+		return new PackFile.Record(PackFile.TYPE_CLASS, name, sourceId, chainLength, chainHash, contents);
+	}
+
+	/**
+	 * @return names of classes loaded during the previous run which are not cached for the given chain
+	 */
+	public List<String> getUncachedPreviousLoads(TransformerChain chain) {
+		val names = new ArrayList<String>();
+		if (enabled)
+			for (val name : previousLoadOrder)
+				if (!isCached(name, chain))
+					names.add(name);
+		return names;
+	}
+
+	private boolean isRecentlyUsed(String name) {
+		val last = lastUsed.get(name);
+		return last == null || run - last <= PropertyLoader.evictAfterRuns();
+	}
+
+	private void readUsage(File file, boolean removeOld) {
+		if (removeOld || !file.exists())
+			return;
+
+		try (val is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (is.readInt() != USAGE_VERSION)
+				return;
+			run = is.readInt() + 1;
+			val count = is.readInt();
+			for (int i = 0; i < count; i++)
+				lastUsed.put(is.readUTF(), is.readInt());
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Error occured trying to read cache usage from " + file);
+			lastUsed.clear();
 		}
+	}
 
-		if (nextCache == null)
-			nextCache = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(nextCacheLocation())));
+	/**
+	 * @param compacted whether classes which were not recently used have been removed from the pack
+	 */
+	private void writeUsage(File file, boolean compacted) {
+		val usage = new HashMap<String, Integer>();
+		for (val offset : pack.liveOffsets()) {
+			val type = pack.type(offset);
+			if (type != PackFile.TYPE_CLASS && type != PackFile.TYPE_REFERENCE)
+				continue;
+			val name = pack.name(offset);
+			if (compacted && !isRecentlyUsed(name))
+				continue;
+			// Classes cached before usage was tracked count as used now
+			val last = lastUsed.get(name);
+			usage.put(name, last == null ? run : last);
+		}
+		for (val e : lastUsed.entrySet())
+			if (e.getValue() == run)
+				usage.put(e.getKey(), run);
 
-		val entry = new ZipEntry(name);
+		val temp = new File(file.getParentFile(), file.getName() + ".temp");
 		try {
-			nextCache.putNextEntry(entry);
-			nextCache.write(contents);
-		} finally {
-			nextCache.closeEntry();
-			cachedClasses++;
+			try (val os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				os.writeInt(USAGE_VERSION);
+				os.writeInt(run);
+				os.writeInt(usage.size());
+				for (val e : usage.entrySet()) {
+					os.writeUTF(e.getKey());
+					os.writeInt(e.getValue());
+				}
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Error occured trying to write cache usage to " + file);
 		}
 	}
 
+	/**
+	 * Records that a transformed class has been defined, used to prefetch cached classes in the same order next start
+	 */
+	public void classDefined(String name) {
+		if (enabled) {
+			loadOrder.add(name);
+			lastUsed.put(name, run);
+		}
+	}
+
+	/**
+	 * @param sources number of sources on the class path
+	 * @return whether this class could not be found in a previous start with the same jars, sources and transformers
+	 */
+	public boolean isKnownMissing(String name, int sources, TransformerChain chain) {
+		return enabled && missingClasses.isKnownMissing(name, sources, chain);
+	}
+
+	public void classMissing(String name, int sources, TransformerChain chain) {
+		if (enabled)
+			missingClasses.missing(name, sources, chain);
+	}
+
+	public void clearMissing(Collection<String> names) {
+		if (enabled)
+			missingClasses.clear(names);
+	}
+
+	public void clearMissing(Function<String, Boolean> predicate) {
+		if (enabled)
+			missingClasses.clear(predicate);
+	}
+
+	private int sourceId(URL source) {
+		if (source == null || !"jar".equals(source.getProtocol()))
+			return PackFile.NO_SOURCE;
+		val jar = SourceJars.fileFor(source);
+		if (jar == null)
+			return PackFile.NO_SOURCE;
+
+		// Source record is submitted inside computeIfAbsent so it is always queued before any entry using its id
+		return sourceIds.computeIfAbsent(jar.getPath(), path -> {
+			val id = nextSourceId.getAndIncrement();
+			val data = SourceMetadata.describe(jar, source);
+			val metadata = SourceMetadata.read(data);
+			if (metadata != null)
+				sourceMetadata.put(id, metadata);
+			writer.submit(new PackFile.Record(PackFile.TYPE_SOURCE, path, id, 0, 0, data));
+			return id;
+		});
+	}
+
 	@SneakyThrows
-	private synchronized void closeCurrentCache() {
-		if (nextCache == null)
-			return;
+	private void closeCurrentCache() {
+		writer.close();
+		pack.close();
+		val compacted = compactor != null && compactor.finish(new File(dir, PACK_NAME));
+		writeUsage(new File(dir, USAGE_NAME), compacted);
+		missingClasses.write(currentState.stateKey());
+		if (sharedStore != null)
+			sharedStore.close();
+		Fingerprints.save();
+		resourceIndex.save();
+		if (prefetcher != null)
+			prefetcher.close();
+		stages.clear();
+		if (!loadOrder.isEmpty()) {
+			val temp = new File(dir, LOAD_ORDER_NAME + ".temp");
+			Files.write(temp.toPath(), loadOrder);
+			Files.move(temp.toPath(), new File(dir, LOAD_ORDER_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		if (staleEntries.sum() > 0)
+			LogWrapper.info("Ignored " + staleEntries.sum() + " cached classes produced by a different transformer chain.");
+		if (stageCheckpointHits.sum() > 0)
+			LogWrapper.info("Resumed transforming " + stageCheckpointHits.sum() + " classes from cached stage checkpoints.");
+		if (unchangedClasses.sum() > 0)
+			LogWrapper.info("Cached " + unchangedClasses.sum() + " classes left unchanged by transformers as references to their source jars.");
+		if (shadowedEntries.sum() > 0)
+			LogWrapper.info("Ignored " + shadowedEntries.sum() + " cached classes which now load from a different source.");
+		if (evictedClasses.sum() > 0)
+			LogWrapper.info("Evicted " + evictedClasses.sum() + " cached classes which did not match a fresh transformation.");
+	}
 
-		nextCache.close();
-		cachedClasses = 0;
-		nextCache = null;
-		val current = nextCacheLocation();
-		val dest = new File(current.getParentFile(), current.getName().replace(".temp", ".jar"));
-		if (!current.renameTo(dest))
-			LogWrapper.severe("Unable to rename complete class cached from '%s' to '%s'", current, dest);
-		cacheZipCount++;
+	@AllArgsConstructor
+	@Getter
+	public static class CachedSource {
+		private final SourceMetadata metadata;
+		private final URL resource;
+		private final CodeSigner[] signers;
 	}
 
-	private File nextCacheLocation() {
-		return new File(dir, String.format(nameFormat, cacheZipCount));
+	@AllArgsConstructor
+	public static class Stage {
+		@Getter
+		private final byte[] bytes;
+		/**
+		 * Number of transformers which have already been run
+		 */
+		@Getter
+		private final int transformers;
+		private final long chainHash;
+		/**
+		 * Whether those transformers returned the class from the source unchanged
+		 */
+		@Getter
+		private final boolean unchanged;
 	}
 }
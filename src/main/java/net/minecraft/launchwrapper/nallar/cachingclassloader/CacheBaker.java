@@ -0,0 +1,264 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.val;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.jar.*;
+
+/**
+ * Fills the cache with every class on the class loader's search path, for --bakeCache
+ * <p>
+ * Run once the launch target has been loaded, so all tweakers have registered their transformers. FML only adds regular mods
+ * to the class loader after that, so the jars in mods/ and its subdirectories are baked after the class loader's
+ * sources, in the order FML adds them. Classes are read on the
+ * calling thread, run through the thread safe prefix of the transformer chain on a pool and through the rest of the chain
+ * on a single thread. Classes which are excluded from transformation or already cached for the current chain are skipped.
+ */
+public class CacheBaker {
+	private final Cache cache;
+	private final TransformerChain chain;
+	private final Function<String, String> cacheableName;
+	private final Transform transform;
+	private final int prefixLength;
+	private final ExecutorService parallel;
+	private final ExecutorService sequential;
+	/**
+	 * Limits how many read but not yet cached classes are held in memory
+	 */
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+	private final AtomicInteger baked = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private int alreadyCached;
+	/**
+	 * Classes already submitted, later copies are shadowed by the first one found as they would be when loading
+	 */
+	private final Set<String> submitted = new HashSet<>();
+
+	private CacheBaker(Cache cache, TransformerChain chain, Function<String, String> cacheableName, Transform transform) {
+		this.cache = cache;
+		this.chain = chain;
+		this.cacheableName = cacheableName;
+		this.transform = transform;
+		prefixLength = chain.length() == 0 ? 0 : SpeculativeTransformer.threadSafePrefixLength(chain);
+		val threads = Math.max(1, PropertyLoader.parallelTransformThreads());
+		parallel = Executors.newFixedThreadPool(threads, daemon("CachingClassLoader baker"));
+		sequential = Executors.newSingleThreadExecutor(daemon("CachingClassLoader baker (sequential)"));
+		maxInFlight = threads * 32;
+		inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * @param cacheableName maps an untransformed class name to its transformed name, or null if it should not be cached
+	 */
+	public static void bake(Cache cache, TransformerChain chain, List<URL> sources, Function<String, String> cacheableName, Transform transform) {
+		if (!cache.isEnabled()) {
+			LogWrapper.warning("Not baking class cache as caching is disabled, set enableCaching=true to bake it");
+			return;
+		}
+		val start = System.nanoTime();
+		LogWrapper.info("Baking class cache, " + (chain.length() == 0 ? 0 : SpeculativeTransformer.threadSafePrefixLength(chain)) + "/" + chain.length() + " transformers will run in parallel");
+		val baker = new CacheBaker(cache, chain, cacheableName, transform);
+		try {
+			baker.bakeAll(withMods(sources, new File("mods")));
+		} finally {
+			baker.parallel.shutdown();
+			baker.sequential.shutdown();
+		}
+		LogWrapper.info("Baked " + baker.baked.get() + " classes in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s, " + baker.alreadyCached + " were already cached and " + baker.failed.get() + " failed to transform.");
+	}
+
+	/**
+	 * @return the sources followed by the jars in the mods directory and its immediate subdirectories which are not
+	 * already sources
+	 */
+	private static List<URL> withMods(List<URL> sources, File modsDirectory) {
+		val result = new ArrayList<URL>(sources);
+		val known = new HashSet<File>();
+		for (val url : sources) {
+			val file = SourceJars.fileFor(url);
+			if (file != null)
+				known.add(file.getAbsoluteFile());
+		}
+		addJars(modsDirectory, 1, known, result);
+		return result;
+	}
+
+	private static void addJars(File directory, int depth, Set<File> known, List<URL> result) {
+		val files = directory.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		for (val f : files) {
+			val lName = f.getName().toLowerCase(Locale.ENGLISH);
+			if (f.isDirectory()) {
+				if (depth > 0)
+					addJars(f, depth - 1, known, result);
+			} else if ((lName.endsWith(".jar") || lName.endsWith(".zip")) && known.add(f.getAbsoluteFile())) {
+				try {
+					result.add(f.toURI().toURL());
+				} catch (MalformedURLException e) {
+					LogWrapper.warning("Not baking classes from %s: %s", f, e);
+				}
+			}
+		}
+	}
+
+	private void bakeAll(List<URL> sources) {
+		val seen = new HashSet<String>();
+		val queue = new ArrayDeque<URL>(sources);
+		while (!queue.isEmpty()) {
+			val url = queue.poll();
+			if (!seen.add(url.toString()))
+				continue;
+			try {
+				val file = "file".equals(url.getProtocol()) ? new File(url.toURI()) : null;
+				if (file == null)
+					LogWrapper.warning("Not baking classes from %s as it is not a local file", url);
+				else if (file.isDirectory())
+					bakeDirectory(file);
+				else if (file.isFile())
+					bakeJar(file, url, queue);
+			} catch (Throwable t) {
+				LogWrapper.log(Level.WARN, t, "Failed to bake classes from %s", url);
+			}
+		}
+		inFlight.acquireUninterruptibly(maxInFlight);
+	}
+
+	private void bakeJar(File file, URL url, Queue<URL> queue) throws IOException {
+		try (val jar = new JarFile(file, true)) {
+			val manifest = jar.getManifest();
+			val classPath = manifest == null ? null : manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+			if (classPath != null)
+				for (val entry : classPath.trim().split("\\s+"))
+					if (!entry.isEmpty())
+						queue.add(new URL(url, entry));
+
+			for (val entry : Collections.list(jar.entries())) {
+				val name = entry.getName();
+				if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/"))
+					continue;
+				submit(name, new URL("jar:" + url + "!/" + name), () -> {
+					try (val is = jar.getInputStream(entry)) {
+						// Signers are only known once the entry has been read fully
+						return new Input(LaunchClassLoader.readFully(is), entry.getCodeSigners());
+					}
+				});
+			}
+			// Entries are read on this thread before being handed to the pools, so the jar can be closed here
+		}
+	}
+
+	private void bakeDirectory(File directory) throws IOException {
+		val root = directory.toPath();
+		try (val paths = Files.walk(root)) {
+			for (val path : (Iterable<Path>) paths::iterator) {
+				val name = root.relativize(path).toString().replace(File.separatorChar, '/');
+				if (name.endsWith(".class") && !name.startsWith("META-INF/"))
+					submit(name, path.toUri().toURL(), () -> new Input(Files.readAllBytes(path), null));
+			}
+		}
+	}
+
+	private void submit(String resourceName, URL resource, Reader reader) {
+		val untransformedName = resourceName.substring(0, resourceName.length() - ".class".length()).replace('/', '.');
+		if (untransformedName.contains("-"))
+			return;
+		val transformedName = cacheableName.apply(untransformedName);
+		if (transformedName == null || !submitted.add(transformedName))
+			return;
+		if (cache.isCached(transformedName, chain)) {
+			alreadyCached++;
+			return;
+		}
+
+		Input input;
+		try {
+			input = reader.read();
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Failed to read %s", resource);
+			failed.incrementAndGet();
+			return;
+		}
+
+		inFlight.acquireUninterruptibly();
+		parallel.execute(() -> {
+			try {
+				// Transformers may modify their input
+				val original = input.bytes.clone();
+				val bytes = transform.transform(untransformedName, transformedName, input.bytes, 0, prefixLength, resource);
+				if (prefixLength == chain.length())
+					save(transformedName, bytes, resource, input.signers, original);
+				else
+					sequential.execute(() -> {
+						try {
+							save(transformedName, transform.transform(untransformedName, transformedName, bytes, prefixLength, chain.length(), resource), resource, input.signers, original);
+						} catch (Throwable t) {
+							failed(transformedName, t);
+						} finally {
+							inFlight.release();
+						}
+					});
+			} catch (Throwable t) {
+				failed(transformedName, t);
+				inFlight.release();
+				return;
+			}
+			if (prefixLength == chain.length())
+				inFlight.release();
+		});
+	}
+
+	private void save(String transformedName, byte[] bytes, URL resource, CodeSigner[] signers, byte[] original) {
+		if (bytes == null) {
+			failed.incrementAndGet();
+			return;
+		}
+		cache.saveClassBytes(transformedName, bytes, resource, signers, chain, Arrays.equals(original, bytes));
+		baked.incrementAndGet();
+	}
+
+	private void failed(String name, Throwable t) {
+		failed.incrementAndGet();
+		LogWrapper.log(Level.DEBUG, t, "Failed to transform %s", name);
+	}
+
+	private static ThreadFactory daemon(String name) {
+		return r -> {
+			val thread = new Thread(r, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	@FunctionalInterface
+	public interface Transform {
+		/**
+		 * Runs transformers [first, last) of the chain over a class, saving stage checkpoints along the way
+		 */
+		byte[] transform(String name, String transformedName, byte[] bytes, int first, int last, URL source);
+	}
+
+	@FunctionalInterface
+	private interface Reader {
+		Input read() throws IOException;
+	}
+
+	@AllArgsConstructor
+	private static class Input {
+		final byte[] bytes;
+		final CodeSigner[] signers;
+	}
+}
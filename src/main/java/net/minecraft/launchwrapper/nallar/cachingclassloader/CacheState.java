@@ -2,7 +2,8 @@ package net.minecraft.launchwrapper.nallar.cachingclassloader;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
-import lombok.SneakyThrows;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import lombok.val;
 import net.minecraft.launchwrapper.LogWrapper;
 import org.apache.logging.log4j.Level;
@@ -10,54 +11,106 @@ import org.apache.logging.log4j.Level;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-@AllArgsConstructor
+/**
+ * Sizes and modification times of the jars in the base directory, mods/ and libraries/, followed by the cache key
+ * <p>
+ * With cacheStateContentHash=true jars are compared by size and content hash instead, so deploys which reset
+ * modification times don't invalidate the cache. Directories are scanned in parallel, and the modification time of each
+ * is kept so {@link #rescan} only lists directories whose entries have changed. Overwriting a jar in place doesn't change
+ * its directory's modification time, so rescan also compares the size and modification time of each known jar.
+ */
 @Data
-class CacheState implements Serializable {
-	List<FileState> states;
+@EqualsAndHashCode(exclude = "directories")
+@ToString(exclude = "directories")
+class CacheState {
+	private static final int VERSION = 1;
+	private static final int MAX_DEPTH = 20;
+	private final List<FileState> states;
+	/**
+	 * Scanned directories, null if this state was read from a file
+	 */
+	private final transient Map<File, DirectoryState> directories;
 
 	CacheState(File directory) {
-		states = new ArrayList<>();
-		if (!PropertyLoader.onlyInvalidateCacheUsingCacheKey())
-			search(states, directory, 0);
-		states.add(new FileState(PropertyLoader.getCacheKey()));
+		this(directory, Collections.emptyMap());
 	}
 
-	@SneakyThrows
-	private static void search(List<FileState> fileStates, File directory, int depth) {
-		if (depth > 20) {
-			throw new IllegalArgumentException(directory + " depth too high: " + depth);
+	private CacheState(File directory, Map<File, DirectoryState> previous) {
+		states = new ArrayList<>();
+		directories = new ConcurrentHashMap<>();
+		if (!PropertyLoader.onlyInvalidateCacheUsingCacheKey()) {
+			ForkJoinPool.commonPool().invoke(new Scan(directory, 0, previous, directories));
+			for (val d : directories.values())
+				states.addAll(d.files);
+			states.sort(Comparator.comparing(a -> a.path));
 		}
+		val key = PropertyLoader.getCacheKey();
+		val keyFiles = PropertyLoader.cacheKeyFiles();
+		states.add(new FileState(keyFiles.isEmpty() ? key : key + ';' + Long.toHexString(Fingerprints.hashCacheKeyFiles(directory)), 0, 0, 0));
+	}
 
-		val files = directory.listFiles();
-		if (files == null)
-			throw new IOException(directory + " is not a directory");
+	private CacheState(List<FileState> states) {
+		this.states = states;
+		directories = null;
+	}
 
-		for (val f : files) {
-			val name = f.getName();
-			val lName = name.toLowerCase();
-			if (f.isDirectory()) {
-				if (depth == 0 && !("mods".equals(lName) || "libraries".equals(lName)))
-					continue;
-				search(fileStates, f, depth + 1);
-				continue;
-			}
+	/**
+	 * @return state of the same directory, only listing directories which changed since this state was scanned and
+	 * only scanning jars whose size or modification time changed
+	 */
+	CacheState rescan(File directory) {
+		return new CacheState(directory, directories == null ? Collections.emptyMap() : directories);
+	}
+
+	/**
+	 * The cache key is always added as the last state, after the searched files
+	 */
+	String getCacheKey() {
+		return states.isEmpty() ? "" : states.get(states.size() - 1).path;
+	}
 
-			if (lName.endsWith(".jar") || lName.endsWith(".jlib") || lName.endsWith(".zip"))
-				fileStates.add(new FileState(f));
+	/**
+	 * @return hash of the cache key and the names relative to the base directory, sizes and content hashes of the jars,
+	 * which is the same for copies of a server in different directories. Content hashes are used whether or not
+	 * cacheStateContentHash is enabled, as copies may have same-named jars of the same size with different contents.
+	 */
+	long packKey(File directory) {
+		val prefix = directory.getPath() + File.separatorChar;
+		long hash = Hashes.hash(getCacheKey());
+		for (int i = 0; i < states.size() - 1; i++) {
+			val state = states.get(i);
+			val path = state.path.startsWith(prefix) ? state.path.substring(prefix.length()) : state.path;
+			val contentHash = state.hash != 0 ? state.hash : Fingerprints.hash(new File(state.path));
+			hash = Hashes.mix(Hashes.mix(Hashes.mix(hash, Hashes.hash(path.replace(File.separatorChar, '/'))), state.size), contentHash);
 		}
+		return hash;
+	}
 
-		fileStates.sort(Comparator.comparing(a -> a.path));
+	/**
+	 * @return hash of every state, including modification times, which changes whenever the pack's sources would be
+	 * considered changed
+	 */
+	long stateKey() {
+		long hash = Hashes.SEED;
+		for (val state : states)
+			hash = Hashes.mix(Hashes.mix(Hashes.mix(Hashes.mix(hash, Hashes.hash(state.path)), state.time), state.size), state.hash);
+		return hash;
 	}
 
 	static CacheState readFromFile(File file) {
 		if (!file.exists())
 			return null;
 
-		try {
-			try (val is = new ObjectInputStream(new FileInputStream(file))) {
-				return (CacheState) is.readObject();
-			}
+		try (val is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (is.readInt() != VERSION)
+				return null;
+			val count = is.readInt();
+			val states = new ArrayList<FileState>(count);
+			for (int i = 0; i < count; i++)
+				states.add(new FileState(is.readUTF(), is.readLong(), is.readLong(), is.readLong()));
+			return new CacheState(states);
 		} catch (Throwable t) {
 			LogWrapper.log(Level.WARN, t, "Error occured trying to read cache state from " + file);
 			return null;
@@ -67,8 +120,15 @@ class CacheState implements Serializable {
 	void writeToFile(File file) {
 		val temp = new File(file.getParentFile(), file.getName() + ".temp");
 		try {
-			try (val os = new ObjectOutputStream(new FileOutputStream(temp))) {
-				os.writeObject(this);
+			try (val os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				os.writeInt(VERSION);
+				os.writeInt(states.size());
+				for (val state : states) {
+					os.writeUTF(state.path);
+					os.writeLong(state.time);
+					os.writeLong(state.size);
+					os.writeLong(state.hash);
+				}
 			}
 			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 		} catch (Throwable t) {
@@ -76,24 +136,112 @@ class CacheState implements Serializable {
 		}
 	}
 
-	@Data
+	private static boolean isJar(String lName) {
+		return lName.endsWith(".jar") || lName.endsWith(".jlib") || lName.endsWith(".zip");
+	}
+
 	@AllArgsConstructor
-	private static class FileState implements Serializable {
-		private String path;
-		private long time;
-		private long size;
-
-		@SneakyThrows
-		FileState(File f) {
-			path = f.getCanonicalPath();
-			time = f.lastModified();
-			size = f.length();
+	private static class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 0;
+		private final File directory;
+		private final int depth;
+		private final Map<File, DirectoryState> previous;
+		private final Map<File, DirectoryState> result;
+
+		@Override
+		protected void compute() {
+			if (depth > MAX_DEPTH)
+				throw new IllegalArgumentException(directory + " depth too high: " + depth);
+
+			val lastModified = directory.lastModified();
+			DirectoryState state = previous.get(directory);
+			if (state == null || state.lastModified != lastModified) {
+				val files = directory.listFiles();
+				if (files == null)
+					throw new UncheckedIOException(new IOException(directory + " is not a directory"));
+
+				val fileStates = new ArrayList<FileState>();
+				val fileTimes = new ArrayList<Long>();
+				val subdirectories = new ArrayList<File>();
+				for (val f : files) {
+					val lName = f.getName().toLowerCase();
+					if (f.isDirectory()) {
+						if (depth != 0 || "mods".equals(lName) || "libraries".equals(lName))
+							subdirectories.add(f);
+					} else if (isJar(lName)) {
+						fileTimes.add(f.lastModified());
+						fileStates.add(FileState.of(f));
+					}
+				}
+				state = new DirectoryState(lastModified, fileStates, toArray(fileTimes), subdirectories);
+			} else {
+				state = state.withChangedFiles();
+			}
+			result.put(directory, state);
+
+			val tasks = new ArrayList<Scan>(state.subdirectories.size());
+			for (val subdirectory : state.subdirectories)
+				tasks.add(new Scan(subdirectory, depth + 1, previous, result));
+			invokeAll(tasks);
+		}
+	}
+
+	private static long[] toArray(List<Long> list) {
+		val array = new long[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+
+	@AllArgsConstructor
+	private static class DirectoryState {
+		final long lastModified;
+		final List<FileState> files;
+		/**
+		 * Modification time of each file when it was scanned, kept separately as FileState.time is 0 when
+		 * cacheStateContentHash is enabled
+		 */
+		final long[] fileTimes;
+		final List<File> subdirectories;
+
+		/**
+		 * @return this state with the files whose size or modification time changed scanned again
+		 */
+		DirectoryState withChangedFiles() {
+			List<FileState> newFiles = null;
+			long[] newTimes = null;
+			for (int i = 0; i < files.size(); i++) {
+				val f = new File(files.get(i).path);
+				val time = f.lastModified();
+				if (time == fileTimes[i] && f.length() == files.get(i).size)
+					continue;
+				if (newFiles == null) {
+					newFiles = new ArrayList<>(files);
+					newTimes = fileTimes.clone();
+				}
+				newFiles.set(i, FileState.of(f));
+				newTimes[i] = time;
+			}
+			return newFiles == null ? this : new DirectoryState(lastModified, newFiles, newTimes, subdirectories);
 		}
+	}
+
+	@Data
+	@AllArgsConstructor
+	private static class FileState {
+		private final String path;
+		private final long time;
+		private final long size;
+		/**
+		 * Content hash, 0 unless cacheStateContentHash is enabled
+		 */
+		private final long hash;
 
-		FileState(String key) {
-			path = key;
-			time = 0;
-			size = 0;
+		static FileState of(File f) {
+			// Paths are under the canonical base directory so don't need to be canonicalized individually
+			if (PropertyLoader.cacheStateContentHash())
+				return new FileState(f.getPath(), 0, f.length(), Fingerprints.hash(f));
+			return new FileState(f.getPath(), f.lastModified(), f.length(), 0);
 		}
 	}
 }
@@ -0,0 +1,190 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks a sample of cache hits against a fresh transformation, enabled by setting verifyCachePercent
+ * <p>
+ * Hits are sampled as classes are loaded and verified on a low priority thread once the launch target has been
+ * loaded. The untransformed class is read from its source again and run through the transformer chain, without
+ * recording metrics or trace events. If the result differs from the cached class the chain is run a second time: a
+ * transformer whose output differs between the two runs is reported as nondeterministic, otherwise the transformers
+ * which changed the class are reported, as one of them depends on something not covered by the cache key. With
+ * verifyCacheEvict set the mismatching class is evicted, so it is transformed again next start.
+ * <p>
+ * Transformers run concurrently with class loading here, as they would if the server loaded classes from more than
+ * one thread, and are called again for classes which are already defined. Transformers which keep state between calls
+ * may fail or report mismatches which don't affect normal loading, so this is meant for checking a pack before relying
+ * on onlyInvalidateCacheUsingCacheKey, not for every start.
+ */
+public class CacheVerifier {
+	private static final int REPORT_DELAY_SECONDS = 30;
+	private final Cache cache;
+	private final int percent = Math.min(100, PropertyLoader.verifyCachePercent());
+	private final boolean evict = PropertyLoader.verifyCacheEvict();
+	private final BlockingQueue<Sample> samples = new LinkedBlockingQueue<>();
+	private final Map<String, Integer> suspects = new TreeMap<>();
+	private int verified;
+	private int mismatched;
+	private int failed;
+	private Reader reader;
+
+	private CacheVerifier(Cache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return null if verification is disabled
+	 */
+	public static CacheVerifier create(Cache cache) {
+		return PropertyLoader.verifyCachePercent() > 0 ? new CacheVerifier(cache) : null;
+	}
+
+	/**
+	 * Called for each class defined from the cache, queues a sample of them for verification
+	 */
+	public void cacheHit(String name, String transformedName, byte[] cached, TransformerChain chain) {
+		if (ThreadLocalRandom.current().nextInt(100) < percent)
+			samples.add(new Sample(name, transformedName, Hashes.hash(cached), chain));
+	}
+
+	/**
+	 * Starts verifying queued and future samples
+	 *
+	 * @param reader reads the untransformed bytes of a class from its source
+	 */
+	public synchronized void start(Reader reader) {
+		if (this.reader != null)
+			return;
+		this.reader = reader;
+		val thread = new Thread(this::run, "CachingClassLoader cache verifier");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Reports once no samples have arrived for a while, so the classes loaded during startup are reported together
+	 */
+	private void run() {
+		int reported = 0;
+		try {
+			while (true) {
+				Sample sample = samples.poll(REPORT_DELAY_SECONDS, TimeUnit.SECONDS);
+				if (sample == null) {
+					if (verified + failed != reported) {
+						logReport();
+						reported = verified + failed;
+					}
+					sample = samples.take();
+				}
+				verify(sample);
+			}
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	private void verify(Sample sample) {
+		long[] first;
+		try {
+			first = transform(sample);
+		} catch (Throwable t) {
+			failed++;
+			LogWrapper.log(Level.DEBUG, t, "Failed to verify cached class %s", sample.transformedName);
+			return;
+		}
+		if (first == null) {
+			failed++;
+			return;
+		}
+		verified++;
+		if (first[first.length - 1] == sample.cachedHash)
+			return;
+
+		mismatched++;
+		val transformers = sample.chain.transformers;
+		val blamed = new ArrayList<String>();
+		String reason;
+		long[] second;
+		try {
+			second = transform(sample);
+		} catch (Throwable t) {
+			second = null;
+		}
+		int nondeterministic = -1;
+		if (second != null)
+			for (int i = 1; i < first.length && nondeterministic == -1; i++)
+				if (first[i] != second[i])
+					nondeterministic = i - 1;
+		if (nondeterministic != -1) {
+			blamed.add(transformers[nondeterministic].getClass().getName());
+			reason = "transformer output differs between runs:";
+		} else {
+			for (int i = 1; i < first.length; i++)
+				if (first[i] != first[i - 1])
+					blamed.add(transformers[i - 1].getClass().getName());
+			reason = "one of the transformers which changed it depends on state outside the cache key:";
+		}
+		for (val name : blamed)
+			suspects.merge(name, 1, Integer::sum);
+		LogWrapper.warning("Cached class %s does not match a fresh transformation, %s %s", sample.transformedName, reason, blamed);
+
+		if (evict)
+			cache.evict(sample.transformedName, sample.chain);
+	}
+
+	/**
+	 * @return hash of the class after each prefix of the chain, or null if the class can't be read or a transformer
+	 * returned null
+	 */
+	private long[] transform(Sample sample) throws IOException {
+		byte[] bytes = reader.read(sample.name);
+		if (bytes == null)
+			return null;
+		// Transformers may modify their input
+		bytes = bytes.clone();
+		val transformers = sample.chain.transformers;
+		val hashes = new long[transformers.length + 1];
+		hashes[0] = Hashes.hash(bytes);
+		for (int i = 0; i < transformers.length; i++) {
+			bytes = transformers[i].transform(sample.name, sample.transformedName, bytes);
+			if (bytes == null)
+				return null;
+			hashes[i + 1] = Hashes.hash(bytes);
+		}
+		return hashes;
+	}
+
+	private void logReport() {
+		val sb = new StringBuilder("Verified " + verified + " sampled cached classes, " + mismatched + " did not match a fresh transformation" + (evict && mismatched > 0 ? " and were evicted" : "") + ", " + failed + " could not be verified.");
+		if (!suspects.isEmpty()) {
+			sb.append(" Transformers responsible for mismatches:");
+			for (val e : suspects.entrySet())
+				sb.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+		}
+		if (mismatched > 0)
+			LogWrapper.warning(sb.toString());
+		else
+			LogWrapper.info(sb.toString());
+	}
+
+	@FunctionalInterface
+	public interface Reader {
+		byte[] read(String name) throws IOException;
+	}
+
+	@AllArgsConstructor
+	private static class Sample {
+		final String name;
+		final String transformedName;
+		final long cachedHash;
+		final TransformerChain chain;
+	}
+}
@@ -0,0 +1,146 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Writes transformed classes to the pack on a dedicated thread so class loading threads only pay for a queue insert
+ * <p>
+ * When the queue is full the submitting thread waits briefly (counted as back-pressure) and the entry is dropped if
+ * there is still no space, as a missing cache entry only costs a re-transform on the next start. SOURCE and SIGNERS
+ * records are never dropped, as classes written after them depend on them, and when baking the cache nothing is
+ * dropped: submitting waits for space instead.
+ * <p>
+ * Every checkpointIntervalSeconds the pack is forced to disk and checkpointed, so a crash during a long cold start only
+ * loses the classes written since then.
+ */
+class CacheWriter implements Runnable {
+	private static final int MAX_BATCH = 256;
+	private static final long OFFER_TIMEOUT_MS = 50;
+	private static final PackFile.Record POISON = new PackFile.Record(PackFile.TYPE_CLASS, null, 0, 0, 0, null);
+
+	private final PackFile pack;
+	private final BlockingQueue<PackFile.Record> queue;
+	private final Thread thread;
+	private final long checkpointIntervalNanos = TimeUnit.SECONDS.toNanos(PropertyLoader.checkpointIntervalSeconds());
+	private long lastCheckpoint = System.nanoTime();
+	private final LongAdder written = new LongAdder();
+	private final LongAdder backPressure = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final AtomicBoolean warnedDropped = new AtomicBoolean();
+	private final boolean blocking;
+	/**
+	 * Held shared while submitting, so close can't queue POISON between a submitter's closed check and its insert
+	 */
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+	private volatile boolean closed;
+
+	CacheWriter(PackFile pack, int queueSize, boolean blocking) {
+		this.pack = pack;
+		this.blocking = blocking;
+		queue = new ArrayBlockingQueue<>(queueSize);
+		thread = new Thread(this, "CachingClassLoader writer");
+		thread.setDaemon(true);
+		thread.start();
+		Metrics.register(Metrics.CACHE_WRITER, this::counters);
+	}
+
+	void submit(PackFile.Record entry) {
+		val lock = closeLock.readLock();
+		lock.lock();
+		try {
+			if (!closed && (queue.offer(entry) || offerSlowly(entry)))
+				return;
+		} finally {
+			lock.unlock();
+		}
+		dropped.increment();
+		if (!closed && warnedDropped.compareAndSet(false, true))
+			LogWrapper.warning("Cache write queue is full, dropping transformed classes which will be transformed again next start. Increase writeQueueSize to avoid this.");
+	}
+
+	private boolean offerSlowly(PackFile.Record entry) {
+		backPressure.increment();
+		val mustWrite = blocking || entry.type == PackFile.TYPE_SOURCE || entry.type == PackFile.TYPE_SIGNERS;
+		try {
+			do {
+				if (queue.offer(entry, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+					return true;
+			} while (mustWrite && !closed);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	@Override
+	public void run() {
+		val batch = new ArrayList<PackFile.Record>(MAX_BATCH);
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				for (val entry : batch) {
+					if (entry == POISON) {
+						pack.flush();
+						return;
+					}
+					pack.append(entry);
+					written.increment();
+					Metrics.cacheWrite(entry.data.length);
+				}
+				batch.clear();
+				pack.flush();
+				if (checkpointIntervalNanos > 0 && System.nanoTime() - lastCheckpoint > checkpointIntervalNanos) {
+					pack.checkpoint();
+					lastCheckpoint = System.nanoTime();
+				}
+			}
+		} catch (Throwable t) {
+			LogWrapper.log(Level.ERROR, t, "Cache writer failed, further transformed classes will not be cached");
+			closed = true;
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Stops accepting entries and waits for everything already queued to be written
+	 */
+	void close() {
+		val lock = closeLock.writeLock();
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			queue.put(POISON);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		val message = "Cache writer finished: " + written.sum() + " records written, " + backPressure.sum() + " back-pressure waits, " + dropped.sum() + " dropped.";
+		if (dropped.sum() > 0)
+			LogWrapper.warning(message);
+		else
+			LogWrapper.info(message);
+	}
+
+	private Map<String, Long> counters() {
+		val result = new LinkedHashMap<String, Long>();
+		result.put("written", written.sum());
+		result.put("queued", (long) queue.size());
+		result.put("backPressure", backPressure.sum());
+		result.put("dropped", dropped.sum());
+		return result;
+	}
+}
@@ -0,0 +1,202 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.jar.*;
+
+/**
+ * Class data sharing for the launcher and library classes, used by Main's --cds mode
+ * <p>
+ * The first start runs in process and records the classes LaunchClassLoader delegates to its parent in
+ * CachingClassLoader/cds/classes.classlist. The next start dumps an archive of those classes, the launcher's own classes
+ * and the JDK's default class list, then relaunches the JVM with the server jar on the class path and that archive.
+ * The archive is recreated when the JVM, its arguments or any class path entry changes.
+ * <p>
+ * Runs before the server jar's libraries are available, so only uses the JDK and prints to stdout/stderr like Main.
+ * Needs a Java 8 JVM with AppCDS support (-XX:+UseAppCDS), Main and launchwrapper require the application class loader
+ * to be a URLClassLoader so don't run on Java 9 or newer. If dumping fails the server runs without CDS until
+ * something in the key changes.
+ */
+class Cds {
+	static final String CHILD_PROPERTY = "cachingClassLoader.cdsChild";
+	private static final String[] NOT_FORWARDED = {"-Xshare", "-XX:SharedArchiveFile", "-XX:SharedClassListFile", "-agentlib", "-agentpath", "-javaagent", "-Xrunjdwp", "-D" + CHILD_PROPERTY};
+	private final File dir = new File("CachingClassLoader", "cds");
+	private final File classList = new File(dir, "classes.classlist");
+	private final File archive = new File(dir, "classes.jsa");
+	private final File failedMarker = new File(dir, "classes.jsa.failed");
+	private final File keyFile = new File(dir, "classes.key");
+	private final String classPath;
+	private final List<String> jvmArguments = new ArrayList<>();
+
+	private Cds(File serverJar) {
+		classPath = System.getProperty("java.class.path") + File.pathSeparator + serverJar.getPath();
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			boolean forward = true;
+			for (String prefix : NOT_FORWARDED)
+				if (arg.startsWith(prefix))
+					forward = false;
+			if (forward)
+				jvmArguments.add(arg);
+		}
+	}
+
+	static boolean isChild() {
+		return Boolean.getBoolean(CHILD_PROPERTY);
+	}
+
+	/**
+	 * Relaunches with the archive and exits once it is available, otherwise returns after enabling class list
+	 * recording for this process
+	 */
+	static void run(File serverJar, String[] args) {
+		new Cds(serverJar).launch(args);
+	}
+
+	private void launch(String[] args) {
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Can't create directory: " + dir);
+			String key = key();
+			if (!key.equals(read(keyFile))) {
+				Files.deleteIfExists(classList.toPath());
+				Files.deleteIfExists(archive.toPath());
+				Files.deleteIfExists(failedMarker.toPath());
+				Files.write(keyFile.toPath(), key.getBytes(StandardCharsets.UTF_8));
+			}
+
+			if (!archive.exists() && classList.exists() && !failedMarker.exists())
+				dump();
+
+			if (archive.exists()) {
+				System.exit(relaunch(args));
+				return;
+			}
+		} catch (Throwable t) {
+			System.err.println("Failed to use class data sharing, continuing without it");
+			t.printStackTrace(System.err);
+			return;
+		}
+
+		if (!classList.exists())
+			System.setProperty("cachingClassLoader.classListFile", classList.getPath());
+	}
+
+	private String key() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(System.getProperty("java.home")).append('\n').append(System.getProperty("java.vm.version")).append('\n');
+		for (String arg : jvmArguments)
+			sb.append(arg).append('\n');
+		for (String entry : classPath.split(File.pathSeparator)) {
+			File f = new File(entry);
+			sb.append(entry).append(' ').append(f.length()).append(' ').append(f.lastModified()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private void dump() throws IOException, InterruptedException {
+		Set<String> classes = new TreeSet<>(Files.readAllLines(classList.toPath(), StandardCharsets.UTF_8));
+		addLauncherClasses(classes);
+		addDefaultClasses(classes);
+		File dumpList = new File(dir, "classes.dump.classlist");
+		Files.write(dumpList.toPath(), classes, StandardCharsets.UTF_8);
+
+		List<String> command = new ArrayList<>();
+		command.add(java());
+		command.addAll(jvmArguments);
+		command.addAll(appCdsArguments());
+		command.add("-Xshare:dump");
+		command.add("-XX:SharedClassListFile=" + dumpList.getPath());
+		command.add("-XX:SharedArchiveFile=" + archive.getPath());
+		command.add("-cp");
+		command.add(classPath);
+		System.out.println("Creating class data sharing archive of " + classes.size() + " classes at " + archive);
+		int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+		Files.deleteIfExists(dumpList.toPath());
+		if (exitCode != 0 || !archive.exists()) {
+			Files.deleteIfExists(archive.toPath());
+			Files.createFile(failedMarker.toPath());
+			System.err.println("Failed to create class data sharing archive, exit code " + exitCode);
+		}
+	}
+
+	/**
+	 * Adds the classes in the jar containing this class, which are loaded by the application class loader before
+	 * LaunchClassLoader exists
+	 */
+	private static void addLauncherClasses(Set<String> classes) throws IOException {
+		File jar;
+		try {
+			jar = new File(Cds.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		if (!jar.isFile())
+			return;
+		try (JarFile jarFile = new JarFile(jar)) {
+			for (JarEntry entry : Collections.list(jarFile.entries())) {
+				String name = entry.getName();
+				if (name.endsWith(".class") && !name.startsWith("META-INF/"))
+					classes.add(name.substring(0, name.length() - ".class".length()));
+			}
+		}
+	}
+
+	/**
+	 * A custom class list replaces the JDK's default one, so its classes are added back
+	 */
+	private static void addDefaultClasses(Set<String> classes) throws IOException {
+		Path defaultList = Paths.get(System.getProperty("java.home"), "lib", "classlist");
+		if (!Files.isRegularFile(defaultList))
+			return;
+		for (String line : Files.readAllLines(defaultList, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (!line.isEmpty() && !line.startsWith("#") && !line.startsWith("@"))
+				classes.add(line.split("\\s+")[0]);
+		}
+	}
+
+	private int relaunch(String[] args) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>();
+		command.add(java());
+		command.addAll(jvmArguments);
+		command.addAll(appCdsArguments());
+		command.add("-Xshare:auto");
+		command.add("-XX:SharedArchiveFile=" + archive.getPath());
+		command.add("-D" + CHILD_PROPERTY + "=true");
+		command.add("-cp");
+		command.add(classPath);
+		command.add(Main.class.getName());
+		command.addAll(Arrays.asList(args));
+
+		Process process = new ProcessBuilder(command).inheritIO().start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			process.destroy();
+			try {
+				process.waitFor();
+			} catch (InterruptedException ignored) {
+			}
+		}, "CachingClassLoader CDS child shutdown"));
+		return process.waitFor();
+	}
+
+	private static List<String> appCdsArguments() {
+		if (!"1.8".equals(System.getProperty("java.specification.version")))
+			return Collections.emptyList();
+		return Arrays.asList("-XX:+UnlockCommercialFeatures", "-XX:+UseAppCDS");
+	}
+
+	private static String java() {
+		return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+	}
+
+	private static String read(File file) {
+		try {
+			return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
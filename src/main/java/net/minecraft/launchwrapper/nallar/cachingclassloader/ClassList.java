@@ -0,0 +1,62 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.experimental.UtilityClass;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Records classes which LaunchClassLoader delegates to its parent, and writes them as a JVM class list
+ * (-XX:SharedClassListFile) when classListFile is set
+ * <p>
+ * Transformed classes are defined by LaunchClassLoader so can't be archived by class data sharing, but the launcher and
+ * libraries loaded through classLoaderExceptions can. The list is written when the launch target is loaded and again at
+ * shutdown, so it is still useful if the server doesn't stop cleanly.
+ */
+@UtilityClass
+public class ClassList {
+	private static final String file = PropertyLoader.classListFile();
+	private static final Set<String> classes = ConcurrentHashMap.newKeySet();
+
+	static {
+		if (!file.isEmpty())
+			Runtime.getRuntime().addShutdownHook(new Thread(ClassList::write, "CachingClassLoader class list writer"));
+	}
+
+	public static boolean isEnabled() {
+		return !file.isEmpty();
+	}
+
+	/**
+	 * @param clazz a class loaded by the parent class loader
+	 */
+	public static void record(Class<?> clazz) {
+		if (!file.isEmpty())
+			classes.add(clazz.getName());
+	}
+
+	public static synchronized void write() {
+		if (file.isEmpty())
+			return;
+		val sorted = new ArrayList<String>(classes.size());
+		for (val name : classes)
+			sorted.add(name.replace('.', '/'));
+		Collections.sort(sorted);
+
+		val target = new File(file);
+		val temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".temp");
+		try {
+			Files.write(temp.toPath(), sorted, StandardCharsets.UTF_8);
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LogWrapper.fine("Wrote %d parent loaded classes to %s", sorted.size(), target);
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Failed to write class list to %s", target);
+		}
+	}
+}
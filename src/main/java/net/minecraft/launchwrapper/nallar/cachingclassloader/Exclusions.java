@@ -0,0 +1,198 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.val;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Prefix exclusion lists, matched against a class name in a single walk
+ * <p>
+ * Each list is exposed as a mutable Set (LaunchClassLoader keeps these in its original fields, which some mods access
+ * by reflection). Any change increments a version, and the next lookup rebuilds an immutable character trie
+ * containing all lists if the current one was built from an older version. Lookups walk that trie along the class name without allocating, collecting a bit for each
+ * list which has an entry that is a prefix of the name.
+ */
+public class Exclusions {
+	public static final int CLASS_LOADER = 1;
+	public static final int DOUBLE_LOAD = 1 << 1;
+	public static final int TRANSFORMER = 1 << 2;
+	private static final int ALL = CLASS_LOADER | DOUBLE_LOAD | TRANSFORMER;
+
+	private final ExclusionSet[] sets = {new ExclusionSet(), new ExclusionSet(), new ExclusionSet()};
+	private final AtomicInteger version = new AtomicInteger();
+	private volatile Trie trie = new Trie(new Builder(), 0);
+
+	/**
+	 * @param list one of CLASS_LOADER, DOUBLE_LOAD or TRANSFORMER
+	 * @return mutable set of prefixes in that list
+	 */
+	public Set<String> set(int list) {
+		return sets[Integer.numberOfTrailingZeros(list)];
+	}
+
+	/**
+	 * @return bitmask of the lists which contain a prefix of this name
+	 */
+	public int match(String name) {
+		Trie trie = this.trie;
+		if (trie.version != version.get())
+			trie = rebuild();
+		return trie.match(name);
+	}
+
+	private synchronized Trie rebuild() {
+		// Read first, so changes made while building cause another rebuild
+		val current = version.get();
+		if (trie.version == current)
+			return trie;
+		val root = new Builder();
+		for (int i = 0; i < sets.length; i++)
+			for (val prefix : sets[i].backing)
+				root.add(prefix, 1 << i);
+		return trie = new Trie(root, current);
+	}
+
+	private static class Builder {
+		final TreeMap<Character, Builder> children = new TreeMap<>();
+		int mask;
+
+		void add(String prefix, int bit) {
+			Builder node = this;
+			for (int i = 0; i < prefix.length(); i++)
+				node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Builder());
+			node.mask |= bit;
+		}
+	}
+
+	/**
+	 * Trie flattened into arrays. Node n's edges are edgeChars/edgeTargets[firstEdge[n], firstEdge[n + 1]), sorted by
+	 * character.
+	 */
+	private static class Trie {
+		final int[] masks;
+		final int[] firstEdge;
+		final char[] edgeChars;
+		final int[] edgeTargets;
+		/**
+		 * Version of the lists this was built from
+		 */
+		final int version;
+
+		Trie(Builder root, int version) {
+			this.version = version;
+			val nodes = new ArrayList<Builder>();
+			nodes.add(root);
+			// Breadth first, so each node's children are numbered consecutively
+			int edges = 0;
+			for (int i = 0; i < nodes.size(); i++) {
+				nodes.addAll(nodes.get(i).children.values());
+				edges += nodes.get(i).children.size();
+			}
+
+			masks = new int[nodes.size()];
+			firstEdge = new int[nodes.size() + 1];
+			edgeChars = new char[edges];
+			edgeTargets = new int[edges];
+			int edge = 0;
+			int nextChild = 1;
+			for (int i = 0; i < nodes.size(); i++) {
+				val node = nodes.get(i);
+				masks[i] = node.mask;
+				firstEdge[i] = edge;
+				for (val c : node.children.keySet()) {
+					edgeChars[edge] = c;
+					edgeTargets[edge++] = nextChild++;
+				}
+			}
+			firstEdge[nodes.size()] = edge;
+		}
+
+		int match(String name) {
+			int node = 0;
+			int result = masks[0];
+			for (int i = 0, length = name.length(); i < length && result != ALL; i++) {
+				node = child(node, name.charAt(i));
+				if (node < 0)
+					break;
+				result |= masks[node];
+			}
+			return result;
+		}
+
+		private int child(int node, char c) {
+			int low = firstEdge[node];
+			int high = firstEdge[node + 1] - 1;
+			while (low <= high) {
+				val mid = (low + high) >>> 1;
+				val midChar = edgeChars[mid];
+				if (midChar < c)
+					low = mid + 1;
+				else if (midChar > c)
+					high = mid - 1;
+				else
+					return edgeTargets[mid];
+			}
+			return -1;
+		}
+	}
+
+	private class ExclusionSet extends AbstractSet<String> {
+		final Set<String> backing = ConcurrentHashMap.newKeySet();
+
+		@Override
+		public boolean add(String s) {
+			if (!backing.add(s))
+				return false;
+			version.incrementAndGet();
+			return true;
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!backing.remove(o))
+				return false;
+			version.incrementAndGet();
+			return true;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return backing.contains(o);
+		}
+
+		@Override
+		public void clear() {
+			backing.clear();
+			version.incrementAndGet();
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			val iterator = backing.iterator();
+			return new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public String next() {
+					return iterator.next();
+				}
+
+				@Override
+				public void remove() {
+					iterator.remove();
+					version.incrementAndGet();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return backing.size();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+import lombok.val;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Content hashes of files, remembered between starts by size and modification time so unchanged files are not
+ * read again
+ * <p>
+ * With cacheStateContentHash=true hashes remembered from previous starts are not used, as that setting is for deploys
+ * which reset or preserve modification times, where a changed file of the same size would keep its old hash. Every file
+ * is then read once per start, which costs startup time in proportion to the size of the jars.
+ */
+@UtilityClass
+class Fingerprints {
+	private static final int VERSION = 1;
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private static File file;
+	private static volatile boolean dirty;
+
+	static synchronized void load(File dir) {
+		file = new File(dir, "fingerprints.dat");
+		if (!file.exists())
+			return;
+
+		try (val is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (is.readInt() != VERSION)
+				return;
+			val count = is.readInt();
+			for (int i = 0; i < count; i++) {
+				val path = is.readUTF();
+				entries.put(path, new Entry(is.readLong(), is.readLong(), is.readLong(), false));
+			}
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Error occured trying to read fingerprints from " + file);
+			entries.clear();
+		}
+	}
+
+	static synchronized void save() {
+		if (!dirty || file == null)
+			return;
+
+		val temp = new File(file.getParentFile(), file.getName() + ".temp");
+		try {
+			try (val os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				val snapshot = new HashMap<String, Entry>(entries);
+				os.writeInt(VERSION);
+				os.writeInt(snapshot.size());
+				for (val e : snapshot.entrySet()) {
+					os.writeUTF(e.getKey());
+					os.writeLong(e.getValue().size);
+					os.writeLong(e.getValue().lastModified);
+					os.writeLong(e.getValue().hash);
+				}
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Error occured trying to write fingerprints to " + file);
+		}
+	}
+
+	/**
+	 * @return hash of the contents of this file, or of the files within it if it is a directory. 0 if it does not exist
+	 */
+	static long hash(File f) {
+		if (f.isDirectory()) {
+			val children = f.listFiles();
+			if (children == null)
+				return 0;
+			Arrays.sort(children);
+			long hash = Hashes.SEED;
+			for (val child : children)
+				hash = Hashes.mix(Hashes.mix(hash, Hashes.hash(child.getName())), hash(child));
+			return hash;
+		}
+
+		if (!f.isFile())
+			return 0;
+
+		val path = f.getAbsolutePath();
+		val size = f.length();
+		val lastModified = f.lastModified();
+		val existing = entries.get(path);
+		if (existing != null && existing.size == size && existing.lastModified == lastModified && (existing.hashedThisStart || !PropertyLoader.cacheStateContentHash()))
+			return existing.hash;
+
+		val hash = hashContents(f);
+		entries.put(path, new Entry(size, lastModified, hash, true));
+		dirty = true;
+		return hash;
+	}
+
+	/**
+	 * @return combined hash of the configured cache key files
+	 */
+	static long hashCacheKeyFiles(File baseDirectory) {
+		long hash = Hashes.SEED;
+		for (val name : PropertyLoader.cacheKeyFiles()) {
+			val f = new File(name);
+			hash = Hashes.mix(Hashes.mix(hash, Hashes.hash(name)), hash(f.isAbsolute() ? f : new File(baseDirectory, name)));
+		}
+		return hash;
+	}
+
+	@SneakyThrows
+	private static long hashContents(File f) {
+		val digest = MessageDigest.getInstance("SHA-1");
+		try (val is = new FileInputStream(f)) {
+			val buffer = new byte[LaunchClassLoader.BUFFER_SIZE];
+			int read;
+			while ((read = is.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		}
+		long hash = 0;
+		for (val b : Arrays.copyOf(digest.digest(), 8))
+			hash = (hash << 8) | (b & 0xFF);
+		return hash;
+	}
+
+	@AllArgsConstructor
+	private static class Entry {
+		final long size;
+		final long lastModified;
+		final long hash;
+		/**
+		 * Not saved, entries read from the file are from a previous start
+		 */
+		final boolean hashedThisStart;
+	}
+}
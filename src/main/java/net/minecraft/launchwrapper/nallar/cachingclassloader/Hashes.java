@@ -0,0 +1,37 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.experimental.UtilityClass;
+import lombok.val;
+
+/**
+ * Cheap non-cryptographic 64 bit hashing, used for fingerprints which are only compared against our own earlier output
+ */
+@UtilityClass
+class Hashes {
+	static final long SEED = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+
+	static long hash(String s) {
+		long h = SEED;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	static long hash(byte[] bytes) {
+		long h = SEED;
+		for (val b : bytes) {
+			h ^= b & 0xFF;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	static long mix(long h, long value) {
+		h ^= value;
+		h *= 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+}
@@ -0,0 +1,62 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.experimental.UtilityClass;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Opens jars on a worker pool as soon as they are added to the class loader, when eagerOpenJars is enabled
+ * <p>
+ * Jars are opened through JarURLConnection with caching enabled, so the JarFile, its central directory and manifest
+ * are already in the JVM's jar cache when the first class or resource URL in that jar is read. Time spent opening is
+ * recorded as "eager jar open" in {@link Metrics}, which is central directory parsing no longer done by the thread
+ * loading classes.
+ */
+@UtilityClass
+public class JarOpener {
+	private static final boolean enabled = PropertyLoader.eagerOpenJars();
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	private static final ThreadPoolExecutor pool = enabled ? pool() : null;
+
+	private static ThreadPoolExecutor pool() {
+		val threads = Math.max(1, PropertyLoader.eagerOpenJarThreads());
+		val pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			val thread = new Thread(r, "CachingClassLoader jar open " + threadCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * @param url a source added to the class loader, ignored unless it is a local jar
+	 */
+	public static void open(URL url) {
+		if (enabled && "file".equals(url.getProtocol()))
+			pool.execute(() -> openNow(url));
+	}
+
+	private static void openNow(URL url) {
+		val file = SourceJars.fileFor(url);
+		if (file == null)
+			return;
+
+		val start = System.nanoTime();
+		try {
+			val connection = (JarURLConnection) new URL("jar:" + url + "!/").openConnection();
+			connection.setUseCaches(true);
+			val jar = connection.getJarFile();
+			jar.getManifest();
+			Metrics.jarOpened(System.nanoTime() - start);
+		} catch (Throwable t) {
+			// URLClassPath reports jars it can't open when it reaches them
+			LogWrapper.log(Level.DEBUG, t, "Failed to open %s ahead of use", file);
+		}
+	}
+}
@@ -9,6 +9,8 @@ public class Main {
 	public static void main(String[] args) {
 		ClassLoader classLoader = Main.class.getClassLoader();
 		String loc = null;
+		boolean cds = false;
+		String[] originalArgs = args;
 		ArrayList<String> argsList = new ArrayList<>(Arrays.asList(args));
 		for (Iterator<String> i$ = argsList.iterator(); i$.hasNext(); ) {
 			String arg = i$.next();
@@ -16,7 +18,13 @@ public class Main {
 			if (arg.toLowerCase().startsWith(serverJarArgument)) {
 				loc = arg.substring(serverJarArgument.length());
 				i$.remove();
-				break;
+			} else if (arg.equalsIgnoreCase("--bakeCache")) {
+				// Read by LaunchClassLoader, which transforms every class and exits instead of starting the server
+				System.setProperty("cachingClassLoader.bakeCache", "true");
+				i$.remove();
+			} else if (arg.equalsIgnoreCase("--cds")) {
+				cds = true;
+				i$.remove();
 			}
 		}
 		args = argsList.toArray(new String[argsList.size()]);
@@ -24,7 +32,14 @@ public class Main {
 			loc = System.getProperty("serverJar");
 		}
 		loc = loc == null ? null : loc.trim();
-		addLibraries((URLClassLoader) classLoader, loc);
+		if (Cds.isChild()) {
+			// Relaunched by --cds with the server jar already on the class path
+			System.out.println("Using class data sharing archive");
+		} else {
+			File serverJar = addLibraries((URLClassLoader) classLoader, loc);
+			if (cds)
+				Cds.run(serverJar, originalArgs);
+		}
 
 		try {
 			Class<?> launchwrapper = Class.forName("net.minecraft.launchwrapper.Launch", true, classLoader);
@@ -47,7 +62,7 @@ public class Main {
 
 	}
 
-	private static void addLibraries(URLClassLoader classLoader, String loc) {
+	private static File addLibraries(URLClassLoader classLoader, String loc) {
 		if (loc == null) {
 			System.err.println("You have not specified a server jar");
 			System.err.println("Please add --serverJar=<minecraft forge jar name here> at the end of your java arguments.");
@@ -67,6 +82,7 @@ public class Main {
 			System.err.println("Could not find specified server jar: " + loc + " @ " + locFile);
 			System.exit(1);
 		}
+		return locFile;
 	}
 
 	private static Method getAddURLMethod() {
@@ -0,0 +1,376 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.experimental.UtilityClass;
+import lombok.val;
+import net.minecraft.launchwrapper.IClassTransformer;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Counters and latency histograms for class loading, always collected and exposed as the
+ * net.minecraft.launchwrapper.nallar.cachingclassloader:type=Metrics MXBean
+ */
+@UtilityClass
+public class Metrics {
+	private static final int SLOWEST_CLASSES = 20;
+	static final String RESOURCE_CACHE = "resource cache";
+	static final String PREFETCH = "prefetch";
+	static final String CACHE_WRITER = "cache writer";
+	private static final LongAdder cacheHits = new LongAdder();
+	private static final LongAdder cacheMisses = new LongAdder();
+	private static final LongAdder bytesReadFromCache = new LongAdder();
+	private static final LongAdder bytesReadFromSources = new LongAdder();
+	private static final LongAdder bytesWrittenToCache = new LongAdder();
+	private static final Histogram cacheRead = new Histogram();
+	private static final Histogram sourceRead = new Histogram();
+	private static final Histogram defineClass = new Histogram();
+	private static final Histogram findResource = new Histogram();
+	private static final Histogram findClass = new Histogram();
+	private static final Histogram jarOpen = new Histogram();
+	private static final Map<String, Histogram> transformers = new ConcurrentHashMap<>();
+	/**
+	 * Counters kept by other components, by component name
+	 */
+	private static final Map<String, Supplier<Map<String, Long>>> components = new ConcurrentHashMap<>();
+	/**
+	 * Min-heap of the slowest classes, only locked when a class is slower than the fastest one in it
+	 */
+	private static final PriorityQueue<ClassTime> slowestClasses = new PriorityQueue<>(Comparator.comparingLong(c -> c.nanos));
+	private static volatile long slowestClassThreshold;
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("net.minecraft.launchwrapper.nallar.cachingclassloader:type=Metrics"));
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Failed to register metrics MXBean");
+		}
+	}
+
+	public static void cacheHit(int bytes, long nanos) {
+		cacheHits.increment();
+		bytesReadFromCache.add(bytes);
+		cacheRead.record(nanos);
+	}
+
+	public static void cacheMiss(long nanos) {
+		cacheMisses.increment();
+		cacheRead.record(nanos);
+	}
+
+	public static void sourceRead(int bytes, long nanos) {
+		bytesReadFromSources.add(bytes);
+		sourceRead.record(nanos);
+	}
+
+	static void cacheWrite(int bytes) {
+		bytesWrittenToCache.add(bytes);
+	}
+
+	public static void defineClass(long nanos) {
+		defineClass.record(nanos);
+	}
+
+	public static void findResource(long nanos) {
+		findResource.record(nanos);
+	}
+
+	static void jarOpened(long nanos) {
+		jarOpen.record(nanos);
+	}
+
+	/**
+	 * Reports a component's counters in the report and MXBean, replacing any earlier instance of that component
+	 */
+	static void register(String component, Supplier<Map<String, Long>> counters) {
+		components.put(component, counters);
+	}
+
+	private static Map<String, Long> component(String name) {
+		val counters = components.get(name);
+		return counters == null ? Collections.emptyMap() : counters.get();
+	}
+
+	public static void transform(IClassTransformer transformer, long nanos) {
+		val name = transformer.getClass().getName();
+		Histogram histogram = transformers.get(name);
+		if (histogram == null)
+			histogram = transformers.computeIfAbsent(name, k -> new Histogram());
+		histogram.record(nanos);
+	}
+
+	/**
+	 * @param nanos total time spent in findClass for this class, including transformers
+	 */
+	public static void findClass(String name, long nanos) {
+		findClass.record(nanos);
+		if (nanos <= slowestClassThreshold)
+			return;
+		synchronized (slowestClasses) {
+			slowestClasses.add(new ClassTime(name, nanos));
+			if (slowestClasses.size() > SLOWEST_CLASSES)
+				slowestClasses.poll();
+			if (slowestClasses.size() == SLOWEST_CLASSES)
+				slowestClassThreshold = slowestClasses.peek().nanos;
+		}
+	}
+
+	public static void logReport() {
+		LogWrapper.info(report());
+	}
+
+	public static String report() {
+		val sb = new StringBuilder("Class loading metrics:\n");
+		sb.append("Cache: ").append(cacheHits.sum()).append(" hits, ").append(cacheMisses.sum()).append(" misses, ")
+			.append(bytesReadFromCache.sum() / 1024).append("KB read, ").append(bytesWrittenToCache.sum() / 1024).append("KB written\n");
+		sb.append("Sources: ").append(bytesReadFromSources.sum() / 1024).append("KB read\n");
+		appendHistogram(sb, "findClass", findClass);
+		appendHistogram(sb, "cache read", cacheRead);
+		appendHistogram(sb, "source read", sourceRead);
+		appendHistogram(sb, "defineClass", defineClass);
+		appendHistogram(sb, "findResource", findResource);
+		if (jarOpen.getCount() != 0)
+			appendHistogram(sb, "eager jar open", jarOpen);
+		for (val e : new TreeMap<>(components).entrySet())
+			sb.append(e.getKey()).append(": ").append(e.getValue().get()).append('\n');
+
+		sb.append("Slowest transformers:\n");
+		val sortedTransformers = new ArrayList<Map.Entry<String, Histogram>>(transformers.entrySet());
+		sortedTransformers.sort((a, b) -> Long.compare(b.getValue().getTotal(), a.getValue().getTotal()));
+		for (val e : sortedTransformers.subList(0, Math.min(10, sortedTransformers.size())))
+			appendHistogram(sb, "  " + e.getKey(), e.getValue());
+
+		sb.append("Slowest classes:\n");
+		for (val e : getSlowestClassNanos().entrySet())
+			sb.append("  ").append(e.getKey()).append(": ").append(e.getValue() / 1000).append("us\n");
+		return sb.toString();
+	}
+
+	private static void appendHistogram(StringBuilder sb, String name, Histogram histogram) {
+		sb.append(name).append(": ").append(histogram.getCount()).append(" calls, ").append(histogram.getTotal() / 1000000).append("ms total, p50 ")
+			.append(histogram.percentile(0.5) / 1000).append("us, p99 ").append(histogram.percentile(0.99) / 1000).append("us\n");
+	}
+
+	private static Map<String, Long> getSlowestClassNanos() {
+		List<ClassTime> sorted;
+		synchronized (slowestClasses) {
+			sorted = new ArrayList<>(slowestClasses);
+		}
+		sorted.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+		val result = new LinkedHashMap<String, Long>();
+		for (val c : sorted)
+			result.put(c.name, c.nanos);
+		return result;
+	}
+
+	@AllArgsConstructor
+	private static class ClassTime {
+		final String name;
+		final long nanos;
+	}
+
+	/**
+	 * Power of two buckets of nanoseconds, percentiles are reported as the upper bound of their bucket
+	 */
+	static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			buckets[63 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+			count.increment();
+			total.add(nanos);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		long getTotal() {
+			return total.sum();
+		}
+
+		long percentile(double p) {
+			val counts = new long[buckets.length];
+			long sum = 0;
+			for (int i = 0; i < counts.length; i++)
+				sum += counts[i] = buckets[i].sum();
+			if (sum == 0)
+				return 0;
+			val target = (long) Math.ceil(sum * p);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target)
+					return i == 63 ? Long.MAX_VALUE : (2L << i) - 1;
+			}
+			return Long.MAX_VALUE;
+		}
+
+		Map<String, Long> summary() {
+			val result = new LinkedHashMap<String, Long>();
+			result.put("count", getCount());
+			result.put("totalNanos", getTotal());
+			result.put("p50Nanos", percentile(0.5));
+			result.put("p90Nanos", percentile(0.9));
+			result.put("p99Nanos", percentile(0.99));
+			return result;
+		}
+	}
+
+	public interface MetricsMXBean {
+		long getCacheHits();
+
+		long getCacheMisses();
+
+		long getBytesReadFromCache();
+
+		long getBytesReadFromSources();
+
+		long getBytesWrittenToCache();
+
+		Map<String, Long> getFindClass();
+
+		Map<String, Long> getCacheRead();
+
+		Map<String, Long> getSourceRead();
+
+		Map<String, Long> getDefineClass();
+
+		Map<String, Long> getFindResource();
+
+		/**
+		 * @return time spent opening jars on eagerOpenJars worker threads
+		 */
+		Map<String, Long> getEagerJarOpen();
+
+		/**
+		 * @return counters of LaunchClassLoader.resourceCache
+		 */
+		Map<String, Long> getResourceCache();
+
+		/**
+		 * @return counters of the cached class prefetcher, empty if it isn't running
+		 */
+		Map<String, Long> getPrefetch();
+
+		/**
+		 * @return counters of the background cache writer, dropped is the number of records lost to a full queue
+		 */
+		Map<String, Long> getCacheWriter();
+
+		/**
+		 * @return total nanoseconds spent in each transformer
+		 */
+		Map<String, Long> getTransformerNanos();
+
+		Map<String, Long> getSlowestClassNanos();
+
+		String getReport();
+	}
+
+	private static class Bean implements MetricsMXBean {
+		@Override
+		public long getCacheHits() {
+			return cacheHits.sum();
+		}
+
+		@Override
+		public long getCacheMisses() {
+			return cacheMisses.sum();
+		}
+
+		@Override
+		public long getBytesReadFromCache() {
+			return bytesReadFromCache.sum();
+		}
+
+		@Override
+		public long getBytesReadFromSources() {
+			return bytesReadFromSources.sum();
+		}
+
+		@Override
+		public long getBytesWrittenToCache() {
+			return bytesWrittenToCache.sum();
+		}
+
+		@Override
+		public Map<String, Long> getFindClass() {
+			return findClass.summary();
+		}
+
+		@Override
+		public Map<String, Long> getCacheRead() {
+			return cacheRead.summary();
+		}
+
+		@Override
+		public Map<String, Long> getSourceRead() {
+			return sourceRead.summary();
+		}
+
+		@Override
+		public Map<String, Long> getDefineClass() {
+			return defineClass.summary();
+		}
+
+		@Override
+		public Map<String, Long> getFindResource() {
+			return findResource.summary();
+		}
+
+		@Override
+		public Map<String, Long> getEagerJarOpen() {
+			return jarOpen.summary();
+		}
+
+		@Override
+		public Map<String, Long> getResourceCache() {
+			return component(RESOURCE_CACHE);
+		}
+
+		@Override
+		public Map<String, Long> getPrefetch() {
+			return component(PREFETCH);
+		}
+
+		@Override
+		public Map<String, Long> getCacheWriter() {
+			return component(CACHE_WRITER);
+		}
+
+		@Override
+		public Map<String, Long> getTransformerNanos() {
+			val result = new TreeMap<String, Long>();
+			for (val e : transformers.entrySet())
+				result.put(e.getKey(), e.getValue().getTotal());
+			return result;
+		}
+
+		@Override
+		public Map<String, Long> getSlowestClassNanos() {
+			return Metrics.getSlowestClassNanos();
+		}
+
+		@Override
+		public String getReport() {
+			return report();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Names of classes which could not be found in a previous start, so probing for them can fail without searching the sources
+ * <p>
+ * A miss is keyed by the class name, the number of sources on the class path and the full transformer chain, as
+ * later added sources or transformers may provide the class. The file is discarded if the cache state changed since it
+ * was written, so any jar changing its size, modification time or (with cacheStateContentHash) content invalidates it. Previous misses are kept as a sorted array of hashes, and only misses confirmed or hit during this start are
+ * written back, so names which stop being probed for drop out.
+ */
+class MissingClasses {
+	private static final int VERSION = 1;
+	private final File file;
+	private final long[] known;
+	private final Set<Miss> current = ConcurrentHashMap.newKeySet();
+	private final Set<String> cleared = ConcurrentHashMap.newKeySet();
+	private final List<Function<String, Boolean>> clearedBy = new CopyOnWriteArrayList<>();
+
+	MissingClasses(File file, long stateKey) {
+		this.file = file;
+		known = read(file, stateKey);
+	}
+
+	private static long[] read(File file, long stateKey) {
+		if (!file.exists())
+			return new long[0];
+
+		try (val is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (is.readInt() != VERSION || is.readLong() != stateKey)
+				return new long[0];
+			val hashes = new long[is.readInt()];
+			for (int i = 0; i < hashes.length; i++)
+				hashes[i] = new Miss(is.readUTF(), is.readInt(), is.readInt(), is.readLong()).hash();
+			Arrays.sort(hashes);
+			return hashes;
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Error occured trying to read missing classes from " + file);
+			return new long[0];
+		}
+	}
+
+	boolean isKnownMissing(String name, int sources, TransformerChain chain) {
+		val miss = new Miss(name, sources, chain.length(), chain.hash());
+		if (Arrays.binarySearch(known, miss.hash()) < 0 || cleared.contains(name))
+			return false;
+		for (val predicate : clearedBy)
+			if (predicate.apply(name))
+				return false;
+		current.add(miss);
+		return true;
+	}
+
+	void missing(String name, int sources, TransformerChain chain) {
+		current.add(new Miss(name, sources, chain.length(), chain.hash()));
+	}
+
+	/**
+	 * Stops previously missing classes from failing without a search for the rest of this start
+	 */
+	void clear(Collection<String> names) {
+		cleared.addAll(names);
+	}
+
+	void clear(Function<String, Boolean> predicate) {
+		clearedBy.add(predicate);
+	}
+
+	void write(long stateKey) {
+		val temp = new File(file.getParentFile(), file.getName() + ".temp");
+		try {
+			try (val os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				val misses = new ArrayList<Miss>(current);
+				os.writeInt(VERSION);
+				os.writeLong(stateKey);
+				os.writeInt(misses.size());
+				for (val miss : misses) {
+					os.writeUTF(miss.name);
+					os.writeInt(miss.sources);
+					os.writeInt(miss.chainLength);
+					os.writeLong(miss.chainHash);
+				}
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Error occured trying to write missing classes to " + file);
+		}
+	}
+
+	@AllArgsConstructor
+	@EqualsAndHashCode
+	private static class Miss {
+		final String name;
+		final int sources;
+		final int chainLength;
+		final long chainHash;
+
+		long hash() {
+			return Hashes.mix(Hashes.mix(Hashes.mix(Hashes.hash(name), sources), chainLength), chainHash);
+		}
+	}
+}
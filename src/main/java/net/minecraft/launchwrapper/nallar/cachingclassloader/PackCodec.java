@@ -0,0 +1,246 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.SneakyThrows;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.*;
+import java.util.zip.*;
+
+/**
+ * Compression of cached class data in the pack, selected by cacheCodec
+ * <p>
+ * stored keeps classes uncompressed, so reads are a copy out of the mapped pack. deflate compresses each class on
+ * its own at cacheCompressionLevel. dictionary also deflates, with a preset dictionary of constant pool strings common
+ * to the first classes written to the pack, which class files repeat so much that it saves far more than it costs.
+ * The dictionary is stored in the pack once trained and used for classes written after it.
+ * <p>
+ * Compressed data is [int uncompressed length][zlib stream], so the dictionary a class needs is identified by the
+ * Adler-32 checksum the stream declares. Data is left uncompressed if compression doesn't make it smaller.
+ */
+class PackCodec {
+	static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final int TRAINING_CLASSES = 1000;
+	private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+	private final Mode mode;
+	private final Deflater deflater;
+	private byte[] dictionary;
+	private List<byte[]> samples;
+
+	PackCodec(Mode mode, int level) {
+		this.mode = mode;
+		deflater = mode == Mode.STORED ? null : new Deflater(level);
+		samples = mode == Mode.DICTIONARY ? new ArrayList<>() : null;
+	}
+
+	static PackCodec fromProperties() {
+		Mode mode;
+		try {
+			mode = Mode.valueOf(PropertyLoader.cacheCodec().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			LogWrapper.warning("Unknown cacheCodec %s, storing classes uncompressed", PropertyLoader.cacheCodec());
+			mode = Mode.STORED;
+		}
+		return new PackCodec(mode, PropertyLoader.cacheCompressionLevel());
+	}
+
+	Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Uses a dictionary already stored in the pack for classes compressed from now on
+	 */
+	void useDictionary(byte[] dictionary) {
+		if (mode == Mode.DICTIONARY) {
+			this.dictionary = dictionary;
+			samples = null;
+		}
+	}
+
+	/**
+	 * @return a newly trained dictionary which must be stored before any data compressed with it, or null if there is
+	 * none. Only one dictionary is trained.
+	 */
+	byte[] takeTrainedDictionary() {
+		if (samples == null || samples.size() < TRAINING_CLASSES)
+			return null;
+		dictionary = train(samples);
+		samples = null;
+		return dictionary.length == 0 ? null : dictionary;
+	}
+
+	/**
+	 * Not thread safe, called with the pack's append lock held
+	 *
+	 * @return compressed data, or null if it should be stored uncompressed
+	 */
+	byte[] compress(byte[] data) {
+		if (mode == Mode.STORED)
+			return null;
+		if (samples != null)
+			samples.add(data);
+
+		deflater.reset();
+		if (dictionary != null)
+			deflater.setDictionary(dictionary);
+		deflater.setInput(data);
+		deflater.finish();
+		val bos = new ByteArrayOutputStream(data.length / 2 + 16);
+		bos.write(data.length >>> 24);
+		bos.write(data.length >>> 16);
+		bos.write(data.length >>> 8);
+		bos.write(data.length);
+		val buffer = new byte[8192];
+		while (!deflater.finished()) {
+			bos.write(buffer, 0, deflater.deflate(buffer));
+			if (bos.size() >= data.length)
+				return null;
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * @param dictionaries finds a stored dictionary by Adler-32 checksum
+	 */
+	@SneakyThrows
+	static byte[] decompress(byte[] compressed, Function<Integer, byte[]> dictionaries) {
+		val length = ((compressed[0] & 0xFF) << 24) | ((compressed[1] & 0xFF) << 16) | ((compressed[2] & 0xFF) << 8) | (compressed[3] & 0xFF);
+		val result = new byte[length];
+		val inflater = PackCodec.inflater.get();
+		inflater.reset();
+		inflater.setInput(compressed, 4, compressed.length - 4);
+		val scratch = new byte[1];
+		int position = 0;
+		while (!inflater.finished()) {
+			// Once the output is full, inflating into scratch consumes the stream's trailer
+			val read = position < length ? inflater.inflate(result, position, length - position) : inflater.inflate(scratch);
+			if (position == length && read > 0)
+				throw new IOException("Compressed class data is longer than declared");
+			position += read;
+			if (read == 0) {
+				if (inflater.needsDictionary()) {
+					val dictionary = dictionaries.apply(inflater.getAdler());
+					if (dictionary == null)
+						throw new IOException("Missing cache dictionary " + Integer.toHexString(inflater.getAdler()));
+					inflater.setDictionary(dictionary);
+				} else if (inflater.needsInput()) {
+					break;
+				}
+			}
+		}
+		if (position != length || !inflater.finished())
+			throw new IOException("Truncated compressed class data");
+		return result;
+	}
+
+	static int adler(byte[] dictionary) {
+		val adler = new Adler32();
+		adler.update(dictionary);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * Builds a dictionary of the CONSTANT_Utf8 entries found in the most classes, encoded as they appear in a class
+	 * file. Deflate matches against the end of the dictionary most cheaply, so the most valuable entries go last.
+	 */
+	static byte[] train(List<byte[]> classes) {
+		val counts = new HashMap<String, Integer>();
+		for (val bytes : classes)
+			for (val s : utf8Constants(bytes))
+				counts.merge(s, 1, Integer::sum);
+
+		val candidates = new ArrayList<Map.Entry<String, Integer>>();
+		for (val e : counts.entrySet())
+			if (e.getValue() > 1)
+				candidates.add(e);
+		candidates.sort((a, b) -> Long.compare(score(b), score(a)));
+
+		val chosen = new ArrayList<byte[]>();
+		int size = 0;
+		for (val e : candidates) {
+			val encoded = e.getKey().getBytes(StandardCharsets.UTF_8);
+			val entrySize = encoded.length + 3;
+			if (encoded.length > 0xFFFF || size + entrySize > DICTIONARY_SIZE)
+				continue;
+			val entry = new byte[entrySize];
+			entry[0] = 1;
+			entry[1] = (byte) (encoded.length >> 8);
+			entry[2] = (byte) encoded.length;
+			System.arraycopy(encoded, 0, entry, 3, encoded.length);
+			chosen.add(entry);
+			size += entrySize;
+		}
+
+		val dictionary = new byte[size];
+		int position = size;
+		for (val entry : chosen) {
+			position -= entry.length;
+			System.arraycopy(entry, 0, dictionary, position, entry.length);
+		}
+		return dictionary;
+	}
+
+	private static long score(Map.Entry<String, Integer> e) {
+		return (long) (e.getValue() - 1) * (e.getKey().length() + 3);
+	}
+
+	/**
+	 * @return distinct CONSTANT_Utf8 strings of a class file, or as many as could be read if it is malformed
+	 */
+	static Set<String> utf8Constants(byte[] bytes) {
+		val result = new HashSet<String>();
+		try (val is = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			if (is.readInt() != 0xCAFEBABE)
+				return result;
+			is.readInt();
+			val count = is.readUnsignedShort();
+			for (int i = 1; i < count; i++) {
+				val tag = is.readUnsignedByte();
+				switch (tag) {
+					case 1: // Utf8
+						result.add(is.readUTF());
+						break;
+					case 5: // Long
+					case 6: // Double
+						is.skipBytes(8);
+						i++;
+						break;
+					case 3: // Integer
+					case 4: // Float
+					case 9: // Fieldref
+					case 10: // Methodref
+					case 11: // InterfaceMethodref
+					case 12: // NameAndType
+					case 17: // Dynamic
+					case 18: // InvokeDynamic
+						is.skipBytes(4);
+						break;
+					case 15: // MethodHandle
+						is.skipBytes(3);
+						break;
+					case 7: // Class
+					case 8: // String
+					case 16: // MethodType
+					case 19: // Module
+					case 20: // Package
+						is.skipBytes(2);
+						break;
+					default:
+						return result;
+				}
+			}
+		} catch (IOException ignored) {
+		}
+		return result;
+	}
+
+	enum Mode {
+		STORED,
+		DEFLATE,
+		DICTIONARY
+	}
+}
@@ -0,0 +1,209 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Rewrites the records of a pack which are still live into a new file, on a background thread
+ * <p>
+ * Superseded records, records from invalidated sources and classes for which the predicate returns false (along with
+ * their signers and stage checkpoints) are left out.
+ * Classes are written in the given load order followed by any others, so a start which loads them in the same order
+ * reads the file sequentially. Records appended to the pack after the compaction started are copied to the end of the
+ * compacted file by {@link #finish}, which then replaces the pack with it.
+ * <p>
+ * Compaction starts when the launch target is loaded, before most classes of this run have been used, so
+ * {@link #finish} checks the predicate again at shutdown and copies back the records of evicted classes which were used
+ * since.
+ */
+class PackCompactor implements Runnable {
+	private final PackFile pack;
+	private final File target;
+	private final List<String> order;
+	private final Predicate<String> keep;
+	private final Thread thread;
+	private volatile boolean cancelled;
+	private volatile boolean written;
+	private int kept;
+	private int evicted;
+	/**
+	 * Records of evicted classes, by class name
+	 */
+	private final Map<String, List<Span>> evictedRecords = new HashMap<>();
+
+	private PackCompactor(PackFile pack, File target, List<String> order, Predicate<String> keep) {
+		this.pack = pack;
+		this.target = target;
+		this.order = order;
+		this.keep = keep;
+		thread = new Thread(this, "CachingClassLoader compactor");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	static PackCompactor start(PackFile pack, File target, List<String> order, Predicate<String> keep) {
+		val compactor = new PackCompactor(pack, target, order, keep);
+		compactor.thread.start();
+		return compactor;
+	}
+
+	@Override
+	public void run() {
+		try {
+			val classes = new LinkedHashMap<String, Integer>();
+			val signers = new HashMap<String, Integer>();
+			val stages = new HashMap<String, List<Integer>>();
+			val dictionaries = new ArrayList<Integer>();
+			long liveBytes = PackFile.HEADER_SIZE;
+			for (val offset : pack.getSourceOffsets())
+				liveBytes += pack.recordSize(offset);
+			for (val offset : pack.liveOffsets()) {
+				val type = pack.type(offset);
+				if (type == PackFile.TYPE_DICTIONARY) {
+					dictionaries.add(offset);
+					liveBytes += pack.recordSize(offset);
+					continue;
+				}
+				if (pack.chainLength(offset) == PackFile.EVICTED && type != PackFile.TYPE_SIGNERS)
+					continue;
+				val name = type == PackFile.TYPE_STAGE ? Cache.stageClassName(pack.name(offset)) : pack.name(offset);
+				if (!keep.test(name)) {
+					if (type == PackFile.TYPE_CLASS || type == PackFile.TYPE_REFERENCE)
+						evicted++;
+					evictedRecords.computeIfAbsent(name, k -> new ArrayList<>()).add(new Span(offset, pack.recordSize(offset), type == PackFile.TYPE_CLASS || type == PackFile.TYPE_REFERENCE));
+					continue;
+				}
+				if (type == PackFile.TYPE_SIGNERS)
+					signers.put(name, offset);
+				else if (type == PackFile.TYPE_STAGE)
+					stages.computeIfAbsent(name, k -> new ArrayList<>()).add(offset);
+				else
+					classes.put(name, offset);
+				liveBytes += pack.recordSize(offset);
+			}
+			kept = classes.size();
+
+			// Not worth rewriting if little would be removed
+			if (evicted == 0 && liveBytes > pack.getAppendPosition() * 3 / 4)
+				return;
+
+			val ordered = new LinkedHashSet<String>(order);
+			ordered.retainAll(classes.keySet());
+			ordered.addAll(classes.keySet());
+			// Stages of classes which no longer have a valid cached output still need to be kept
+			ordered.addAll(stages.keySet());
+
+			try (val channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				write(channel, PackFile.header());
+				for (val offset : pack.getSourceOffsets())
+					write(channel, pack.record(offset));
+				// Compressed records need their dictionary to be mapped when they are read
+				for (val offset : dictionaries)
+					write(channel, pack.record(offset));
+				for (val name : ordered) {
+					if (cancelled)
+						return;
+					val classOffset = classes.get(name);
+					if (classOffset != null)
+						write(channel, pack.record(classOffset));
+					val signersOffset = signers.get(name);
+					if (signersOffset != null)
+						write(channel, pack.record(signersOffset));
+					val stageOffsets = stages.get(name);
+					if (stageOffsets != null)
+						for (val offset : stageOffsets)
+							write(channel, pack.record(offset));
+				}
+				// Records copied from the pack's tail in finish are checked by CRC on the next open
+				channel.force(false);
+				PackFile.writeCheckpoint(channel, channel.position());
+			}
+			written = true;
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Failed to compact class cache pack");
+		}
+	}
+
+	/**
+	 * Copies the records of evicted classes which have been used since compaction started, before the records appended
+	 * during this run so those still replace them
+	 */
+	private void rescueUsed(FileChannel in, FileChannel out) throws IOException {
+		for (val e : evictedRecords.entrySet()) {
+			if (!keep.test(e.getKey()))
+				continue;
+			boolean rescuedClass = false;
+			for (val span : e.getValue()) {
+				long position = span.offset;
+				val end = position + span.size;
+				while (position < end)
+					position += in.transferTo(position, end - position, out);
+				rescuedClass |= span.isClass;
+			}
+			if (rescuedClass) {
+				evicted--;
+				kept++;
+			}
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Must be called after the pack has been closed. Waits for compaction to finish, then replaces the pack file with
+	 * the compacted file followed by any records appended to the pack since it was opened.
+	 *
+	 * @return whether the pack was replaced
+	 */
+	boolean finish(File packFile) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancelled = true;
+		}
+		if (!written || cancelled) {
+			target.delete();
+			return false;
+		}
+
+		try {
+			try (val in = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+					 val out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				rescueUsed(in, out);
+				long position = pack.getAppendPosition();
+				val end = in.size();
+				while (position < end)
+					position += in.transferTo(position, end - position, out);
+			}
+			val before = packFile.length();
+			Files.move(target.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LogWrapper.info("Compacted class cache from " + before / 1024 + "KB to " + packFile.length() / 1024 + "KB, kept " + kept + " classes and evicted " + evicted + " unused classes.");
+			return true;
+		} catch (IOException e) {
+			// Fails on Windows while the old pack is still mapped, compaction will be retried next start
+			LogWrapper.fine("Unable to replace %s with compacted pack: %s", packFile, e);
+			target.delete();
+			return false;
+		}
+	}
+
+	@AllArgsConstructor
+	private static class Span {
+		final int offset;
+		final int size;
+		final boolean isClass;
+	}
+}
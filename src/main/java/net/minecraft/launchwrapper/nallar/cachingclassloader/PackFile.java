@@ -0,0 +1,542 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.val;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.*;
+
+/**
+ * Single append-only file containing cached transformed classes.
+ * <p>
+ * Layout: header (magic, version, checkpoint), followed by records of the form
+ * [int nameHash][int nameLength][int dataLength][byte type][int sourceId][int chainLength][long chainHash][int crc][name bytes (UTF-8)][data bytes]
+ * <p>
+ * The CRC covers the rest of the header, the name and the data. Records before the checkpoint offset were forced to
+ * disk before it was written, so only records after it have their CRC checked on open, and the records before the first
+ * incomplete or corrupt one are kept. This way a crash only loses the records written since the last checkpoint which
+ * didn't reach the disk.
+ * <p>
+ * SOURCE records declare the jar a source id refers to, with its size and modification time followed by metadata
+ * needed to define classes from it. CLASS records refer to the source they were loaded from (or -1 if it isn't a jar)
+ * and the transformer chain which produced them. SIGNERS records hold the code signers of a class from a
+ * signed jar. REFERENCE records stand in for a CLASS record of a class which the transformers left unchanged, their
+ * data is the name of the class's entry in the source jar, which can't have changed while the source is valid. A
+ * REFERENCE replaces an earlier CLASS record with the same name and vice versa. STAGE records hold the output of a
+ * prefix of the transformer chain for a class, named [class name]:[prefix length]. DICTIONARY records hold a preset
+ * deflate dictionary used by {@link PackCodec}, named by its Adler-32 checksum in hex. The data of CLASS and STAGE
+ * records is compressed by the codec if the type byte has FLAG_COMPRESSED set. A CLASS or STAGE record with chain length
+ * EVICTED is a tombstone, which replaces an earlier record with the same name without matching any transformer chain.
+ * <p>
+ * On open the records are scanned once to build an open-addressing hash table of record offsets keyed by type and
+ * name, skipping records from sources which are no longer valid, and the file is mapped, so a lookup is a table probe
+ * followed by a copy of the data out of the mapping. Records appended during this run are only visible after the next
+ * open.
+ */
+class PackFile implements Closeable {
+	static final byte TYPE_CLASS = 0;
+	static final byte TYPE_SOURCE = 1;
+	static final byte TYPE_SIGNERS = 2;
+	static final byte TYPE_REFERENCE = 3;
+	static final byte TYPE_STAGE = 4;
+	static final byte TYPE_DICTIONARY = 5;
+	private static final byte TYPE_MASK = 0x0F;
+	private static final byte FLAG_COMPRESSED = 0x10;
+	static final int NO_SOURCE = -1;
+	static final int EVICTED = -1;
+	private static final int MAGIC = 0x43434C50; // CCLP
+	private static final int VERSION = 4;
+	static final int HEADER_SIZE = 16;
+	private static final int CHECKPOINT_OFFSET = 8;
+	private static final int CRC_OFFSET = 29;
+	private static final int RECORD_HEADER_SIZE = 33;
+
+	private final File file;
+	private final MappedByteBuffer mapped;
+	/**
+	 * Open-addressing table of record offsets, 0 = empty slot (offset 0 is always the file header)
+	 */
+	private final int[] table;
+	private final int count;
+	/**
+	 * Valid sources from previous runs, by path
+	 */
+	private final Map<String, Integer> sources = new HashMap<>();
+	/**
+	 * Data of valid SOURCE records, by id
+	 */
+	private final Map<Integer, byte[]> sourceData = new HashMap<>();
+	/**
+	 * Offsets of the SOURCE records of valid sources
+	 */
+	private final List<Integer> sourceOffsets = new ArrayList<>();
+	private final int nextSourceId;
+	private final int dropped;
+	private final int droppedSources;
+	/**
+	 * End of the last complete record, new records are written from here
+	 */
+	private final long appendPosition;
+	/**
+	 * Offset of the last DICTIONARY record, 0 if there is none
+	 */
+	private final int lastDictionary;
+	private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+	private PackCodec codec;
+	private FileChannel outChannel;
+	private DataOutputStream out;
+
+	@SneakyThrows
+	private PackFile(File file, BiPredicate<String, byte[]> sourceValidator) {
+		this.file = file;
+		try (val raf = new RandomAccessFile(file, "rw"); val channel = raf.getChannel()) {
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("Pack file " + file + " is too large: " + length);
+
+			if (length < HEADER_SIZE) {
+				channel.truncate(0);
+				channel.write(header(), 0);
+				length = HEADER_SIZE;
+			}
+
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION)
+				throw new IOException("Pack file " + file + " has an unknown format");
+
+			long checkpoint = mapped.getLong(CHECKPOINT_OFFSET);
+			if (checkpoint < HEADER_SIZE || checkpoint > length)
+				checkpoint = HEADER_SIZE;
+
+			val offsets = new ArrayList<Integer>();
+			val liveSources = new BitSet();
+			int maxSourceId = NO_SOURCE;
+			int dictionaryOffset = 0;
+			int droppedRecords = 0;
+			int droppedSourceCount = 0;
+			int corruptRecords = 0;
+			int position = HEADER_SIZE;
+			while (position + RECORD_HEADER_SIZE <= length) {
+				int nameLength = mapped.getInt(position + 4);
+				int dataLength = mapped.getInt(position + 8);
+				long end = (long) position + RECORD_HEADER_SIZE + nameLength + dataLength;
+				if (nameLength <= 0 || dataLength < 0 || end > length)
+					break;
+				if (position >= checkpoint && !checksumMatches(position)) {
+					corruptRecords++;
+					break;
+				}
+
+				val sourceId = sourceId(position);
+				// Ids used by records whose SOURCE record was lost must not be reused for another jar
+				maxSourceId = Math.max(maxSourceId, sourceId);
+				switch (type(position)) {
+					case TYPE_SOURCE:
+						val path = name(position);
+						val data = data(position);
+						if (sourceValidator.test(path, data)) {
+							liveSources.set(sourceId);
+							sources.put(path, sourceId);
+							sourceData.put(sourceId, data);
+							sourceOffsets.add(position);
+						} else {
+							droppedSourceCount++;
+						}
+						break;
+					case TYPE_CLASS:
+					case TYPE_SIGNERS:
+					case TYPE_REFERENCE:
+					case TYPE_STAGE:
+						if (sourceId == NO_SOURCE || liveSources.get(sourceId))
+							offsets.add(position);
+						else if (type(position) == TYPE_CLASS || type(position) == TYPE_REFERENCE)
+							droppedRecords++;
+						break;
+					case TYPE_DICTIONARY:
+						offsets.add(position);
+						dictionaryOffset = position;
+						break;
+					default:
+						throw new IOException("Unknown record type at " + position + " in " + file);
+				}
+				position = (int) end;
+			}
+
+			// Can't truncate here as the file is already mapped, the incomplete tail is overwritten by the next append
+			if (position != length)
+				LogWrapper.warning("Discarding %d bytes of incomplete%s records at the end of %s", length - position, corruptRecords == 0 ? "" : " or corrupt", file);
+			appendPosition = position;
+			lastDictionary = dictionaryOffset;
+			nextSourceId = maxSourceId + 1;
+
+			table = new int[tableSize(offsets.size())];
+			int unique = 0;
+			for (val offset : offsets)
+				if (insert(offset))
+					unique++;
+			count = unique;
+			dropped = droppedRecords;
+			droppedSources = droppedSourceCount;
+		}
+	}
+
+	static PackFile open(File file, BiPredicate<String, byte[]> sourceValidator) {
+		try {
+			return new PackFile(file, sourceValidator);
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Failed to open class cache pack %s, it will be recreated", file);
+			if (file.exists() && !file.delete())
+				throw new IOError(new IOException("Failed to delete broken class cache pack " + file));
+			return new PackFile(file, sourceValidator);
+		}
+	}
+
+	static ByteBuffer header() {
+		val header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+		return header;
+	}
+
+	/**
+	 * Marks everything before position as durable, must only be called after the file has been forced up to there
+	 */
+	static void writeCheckpoint(FileChannel channel, long position) throws IOException {
+		val buffer = ByteBuffer.allocate(8);
+		buffer.putLong(position).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer, CHECKPOINT_OFFSET + buffer.position());
+	}
+
+	private boolean checksumMatches(int offset) {
+		val crc = new CRC32();
+		val view = mapped.duplicate();
+		view.position(offset).limit(offset + CRC_OFFSET);
+		crc.update(view);
+		view.limit(offset + recordSize(offset)).position(offset + RECORD_HEADER_SIZE);
+		crc.update(view);
+		return (int) crc.getValue() == mapped.getInt(offset + CRC_OFFSET);
+	}
+
+	private static int tableSize(int entries) {
+		int size = 16;
+		while (size < entries * 2)
+			size <<= 1;
+		return size;
+	}
+
+	/**
+	 * @return true if this offset was added as a new name, false if it replaced an older record with the same name
+	 */
+	private boolean insert(int offset) {
+		val mask = table.length - 1;
+		val hash = mapped.getInt(offset);
+		val type = keyType(offset);
+		for (int slot = mix(hash, type) & mask; ; slot = (slot + 1) & mask) {
+			val existing = table[slot];
+			if (existing == 0) {
+				table[slot] = offset;
+				return type == TYPE_CLASS;
+			}
+			if (mapped.getInt(existing) == hash && keyType(existing) == type && sameName(existing, offset)) {
+				table[slot] = offset;
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * REFERENCE records are looked up as CLASS records
+	 */
+	private byte keyType(int offset) {
+		val type = type(offset);
+		return type == TYPE_REFERENCE ? TYPE_CLASS : type;
+	}
+
+	/**
+	 * @return offset of the latest CLASS or REFERENCE record with this name, or 0 if there is none
+	 */
+	int find(String name) {
+		return find(TYPE_CLASS, name);
+	}
+
+	/**
+	 * @return offset of the latest record of this type with this name, or 0 if there is none
+	 */
+	int find(byte type, String name) {
+		val mask = table.length - 1;
+		val hash = name.hashCode();
+		for (int slot = mix(hash, type) & mask; ; slot = (slot + 1) & mask) {
+			val offset = table[slot];
+			if (offset == 0)
+				return 0;
+			if (mapped.getInt(offset) == hash && keyType(offset) == type && nameEquals(offset, name))
+				return offset;
+		}
+	}
+
+	private static int mix(int hash, byte type) {
+		hash += type * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private boolean sameName(int a, int b) {
+		val length = mapped.getInt(a + 4);
+		if (length != mapped.getInt(b + 4))
+			return false;
+		for (int i = 0; i < length; i++)
+			if (mapped.get(a + RECORD_HEADER_SIZE + i) != mapped.get(b + RECORD_HEADER_SIZE + i))
+				return false;
+		return true;
+	}
+
+	private boolean nameEquals(int offset, String name) {
+		val length = mapped.getInt(offset + 4);
+		val start = offset + RECORD_HEADER_SIZE;
+		if (length == name.length()) {
+			// Class names are almost always ASCII, so compare without encoding
+			boolean ascii = true;
+			for (int i = 0; i < length; i++) {
+				val c = name.charAt(i);
+				if (c >= 0x80) {
+					ascii = false;
+					break;
+				}
+				if (mapped.get(start + i) != c)
+					return false;
+			}
+			if (ascii)
+				return true;
+		}
+		val bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length != length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (mapped.get(start + i) != bytes[i])
+				return false;
+		return true;
+	}
+
+	String name(int offset) {
+		val bytes = new byte[mapped.getInt(offset + 4)];
+		val view = mapped.duplicate();
+		view.position(offset + RECORD_HEADER_SIZE);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return copy of the data stored in the record at this offset
+	 */
+	byte[] data(int offset) {
+		val data = rawData(offset);
+		if ((mapped.get(offset + 12) & FLAG_COMPRESSED) == 0)
+			return data;
+		return PackCodec.decompress(data, this::dictionary);
+	}
+
+	private byte[] rawData(int offset) {
+		val nameLength = mapped.getInt(offset + 4);
+		val data = new byte[mapped.getInt(offset + 8)];
+		val view = mapped.duplicate();
+		view.position(offset + RECORD_HEADER_SIZE + nameLength);
+		view.get(data);
+		return data;
+	}
+
+	private byte[] dictionary(int adler) {
+		return dictionaries.computeIfAbsent(adler, key -> {
+			val offset = find(TYPE_DICTIONARY, Integer.toHexString(key));
+			return offset == 0 ? null : rawData(offset);
+		});
+	}
+
+	byte type(int offset) {
+		return (byte) (mapped.get(offset + 12) & TYPE_MASK);
+	}
+
+	/**
+	 * Sets the codec used for records appended from now on, and gives it the latest dictionary in the pack
+	 */
+	synchronized void setCodec(PackCodec codec) {
+		this.codec = codec;
+		if (lastDictionary != 0)
+			codec.useDictionary(rawData(lastDictionary));
+	}
+
+	/**
+	 * @return size of the record at this offset, including its header
+	 */
+	int recordSize(int offset) {
+		return RECORD_HEADER_SIZE + mapped.getInt(offset + 4) + mapped.getInt(offset + 8);
+	}
+
+	/**
+	 * @return read-only view of the whole record at this offset, including its header
+	 */
+	ByteBuffer record(int offset) {
+		val view = mapped.asReadOnlyBuffer();
+		view.position(offset).limit(offset + recordSize(offset));
+		return view;
+	}
+
+	/**
+	 * @return offsets of the latest record of each type and name
+	 */
+	int[] liveOffsets() {
+		val offsets = new int[table.length];
+		int count = 0;
+		for (val offset : table)
+			if (offset != 0)
+				offsets[count++] = offset;
+		return Arrays.copyOf(offsets, count);
+	}
+
+	List<Integer> getSourceOffsets() {
+		return sourceOffsets;
+	}
+
+	/**
+	 * @return end of the records which were present when this pack was opened, records appended since start here
+	 */
+	long getAppendPosition() {
+		return appendPosition;
+	}
+
+	int sourceId(int offset) {
+		return mapped.getInt(offset + 13);
+	}
+
+	int chainLength(int offset) {
+		return mapped.getInt(offset + 17);
+	}
+
+	long chainHash(int offset) {
+		return mapped.getLong(offset + 21);
+	}
+
+	/**
+	 * @return number of distinct cached classes
+	 */
+	int size() {
+		return count;
+	}
+
+	int getDropped() {
+		return dropped;
+	}
+
+	int getDroppedSources() {
+		return droppedSources;
+	}
+
+	int getNextSourceId() {
+		return nextSourceId;
+	}
+
+	Map<String, Integer> getSources() {
+		return sources;
+	}
+
+	Map<Integer, byte[]> getSourceData() {
+		return sourceData;
+	}
+
+	synchronized void append(Record record) {
+		if (codec == null || (record.type != TYPE_CLASS && record.type != TYPE_STAGE)) {
+			write(record, record.type, record.data);
+			return;
+		}
+
+		val dictionary = codec.takeTrainedDictionary();
+		if (dictionary != null)
+			write(new Record(TYPE_DICTIONARY, Integer.toHexString(PackCodec.adler(dictionary)), NO_SOURCE, 0, 0, dictionary), TYPE_DICTIONARY, dictionary);
+		val compressed = codec.compress(record.data);
+		if (compressed == null)
+			write(record, record.type, record.data);
+		else
+			write(record, (byte) (record.type | FLAG_COMPRESSED), compressed);
+	}
+
+	@SneakyThrows
+	private void write(Record record, byte type, byte[] data) {
+		if (out == null) {
+			outChannel = new RandomAccessFile(file, "rw").getChannel();
+			outChannel.position(appendPosition);
+			out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(outChannel), LaunchClassLoader.BUFFER_SIZE));
+		}
+
+		val nameBytes = record.name.getBytes(StandardCharsets.UTF_8);
+		val header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		header.putInt(record.name.hashCode());
+		header.putInt(nameBytes.length);
+		header.putInt(data.length);
+		header.put(type);
+		header.putInt(record.sourceId);
+		header.putInt(record.chainLength);
+		header.putLong(record.chainHash);
+		val crc = new CRC32();
+		crc.update(header.array(), 0, CRC_OFFSET);
+		crc.update(nameBytes);
+		crc.update(data);
+		header.putInt((int) crc.getValue());
+		out.write(header.array());
+		out.write(nameBytes);
+		out.write(data);
+	}
+
+	/**
+	 * Forces everything appended so far to disk and records it as durable
+	 */
+	@SneakyThrows
+	synchronized void checkpoint() {
+		if (out == null)
+			return;
+
+		out.flush();
+		outChannel.force(false);
+		writeCheckpoint(outChannel, outChannel.position());
+	}
+
+	@SneakyThrows
+	synchronized void flush() {
+		if (out != null)
+			out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out == null)
+			return;
+
+		out.flush();
+		try {
+			outChannel.truncate(outChannel.position());
+		} catch (IOException e) {
+			LogWrapper.fine("Unable to truncate %s: %s", file, e);
+		}
+		checkpoint();
+		out.close();
+		out = null;
+		outChannel = null;
+	}
+
+	@AllArgsConstructor
+	static class Record {
+		final byte type;
+		final String name;
+		final int sourceId;
+		final int chainLength;
+		final long chainHash;
+		final byte[] data;
+	}
+}
@@ -0,0 +1,182 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Reads cached classes into memory ahead of demand, in the order they were first loaded during the previous run
+ * <p>
+ * Staged data is bounded by maxBytes, prefetch threads wait for entries to be taken when it is full. Entries more than
+ * SKIP_WINDOW classes behind the furthest class taken so far are assumed to have been skipped this run and dropped.
+ * Once no class has been taken for 30 seconds after the previous load order has been read, or while waiting for space,
+ * the rest of the staged data is dropped and prefetching stops. It isn't dropped at launch, as the previous load order
+ * includes the classes loaded after launch.
+ */
+class Prefetcher {
+	private static final int SKIP_WINDOW = 2048;
+	private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+	private final PackFile pack;
+	private final List<String> order;
+	private final long maxBytes;
+	private final int threads;
+	private final Map<String, Staged> staging = new ConcurrentHashMap<>();
+	/**
+	 * Names of staged entries in roughly the order they were read
+	 */
+	private final Queue<String> stagedOrder = new ConcurrentLinkedQueue<>();
+	private final Set<String> requested = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger cursor = new AtomicInteger();
+	private final AtomicInteger furthestTaken = new AtomicInteger(-1);
+	private final AtomicInteger finishedThreads = new AtomicInteger();
+	private final AtomicLong stagedBytes = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder prefetchedBytes = new LongAdder();
+	private final LongAdder wastedBytes = new LongAdder();
+	private volatile long lastTaken = System.nanoTime();
+	private volatile boolean closed;
+
+	Prefetcher(PackFile pack, List<String> order, int threads, long maxBytes) {
+		this.pack = pack;
+		this.order = order;
+		this.maxBytes = maxBytes;
+		this.threads = threads;
+		Metrics.register(Metrics.PREFETCH, this::counters);
+		for (int i = 0; i < threads; i++) {
+			val thread = new Thread(this::run, "CachingClassLoader prefetch " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void run() {
+		try {
+			int i;
+			while (!closed && (i = cursor.getAndIncrement()) < order.size()) {
+				val name = order.get(i);
+				if (requested.contains(name))
+					continue;
+
+				val offset = pack.find(name);
+				// References are read from their source jar when used
+				if (offset == 0 || pack.type(offset) != PackFile.TYPE_CLASS || pack.chainLength(offset) == PackFile.EVICTED)
+					continue;
+
+				while (stagedBytes.get() > maxBytes && !closed) {
+					if (isIdle())
+						release();
+					LockSupport.parkNanos(1_000_000);
+				}
+				if (closed)
+					break;
+
+				val data = pack.data(offset);
+				stagedBytes.addAndGet(data.length);
+				prefetchedBytes.add(data.length);
+				staging.put(name, new Staged(i, data));
+				stagedOrder.add(name);
+				// Requested while we were reading it, or released, so nothing will take it
+				if (requested.contains(name) || closed)
+					discard(name);
+			}
+			if (finishedThreads.incrementAndGet() == threads)
+				while (!closed) {
+					if (isIdle())
+						release();
+					LockSupport.parkNanos(IDLE_NANOS / 10);
+				}
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Class cache prefetch failed");
+		}
+	}
+
+	private boolean isIdle() {
+		return System.nanoTime() - lastTaken > IDLE_NANOS;
+	}
+
+	/**
+	 * @return the prefetched data for this entry, or null if it has not been prefetched
+	 */
+	byte[] take(String name) {
+		requested.add(name);
+		lastTaken = System.nanoTime();
+		val staged = staging.remove(name);
+		if (staged == null) {
+			misses.increment();
+			return null;
+		}
+		stagedBytes.addAndGet(-staged.data.length);
+		hits.increment();
+		dropSkipped(furthestTaken.accumulateAndGet(staged.index, Math::max));
+		return staged.data;
+	}
+
+	private void dropSkipped(int furthest) {
+		String oldest;
+		while ((oldest = stagedOrder.peek()) != null) {
+			val staged = staging.get(oldest);
+			if (staged != null && staged.index >= furthest - SKIP_WINDOW)
+				break;
+			if (stagedOrder.remove(oldest) && staged != null)
+				discard(oldest);
+		}
+	}
+
+	/**
+	 * Drops any prefetched data for an entry which will not be used
+	 */
+	void discard(String name) {
+		requested.add(name);
+		val staged = staging.remove(name);
+		if (staged != null) {
+			stagedBytes.addAndGet(-staged.data.length);
+			wastedBytes.add(staged.data.length);
+		}
+	}
+
+	/**
+	 * Stops prefetching and drops all staged data
+	 */
+	private void release() {
+		closed = true;
+		for (val name : new ArrayList<>(staging.keySet()))
+			discard(name);
+		stagedOrder.clear();
+	}
+
+	void close() {
+		release();
+		LogWrapper.info("Class cache prefetch: " + hits.sum() + " hits, " + misses.sum() + " misses (" + Math.round(getHitRate() * 100) + "% hit rate), " + (prefetchedBytes.sum() / 1024) + "KB prefetched, " + (wastedBytes.sum() / 1024) + "KB wasted.");
+	}
+
+	double getHitRate() {
+		val total = hits.sum() + misses.sum();
+		return total == 0 ? 0 : (double) hits.sum() / total;
+	}
+
+	private Map<String, Long> counters() {
+		val result = new LinkedHashMap<String, Long>();
+		result.put("hits", hits.sum());
+		result.put("misses", misses.sum());
+		result.put("stagedBytes", stagedBytes.get());
+		result.put("prefetchedBytes", prefetchedBytes.sum());
+		result.put("wastedBytes", wastedBytes.sum());
+		return result;
+	}
+
+	@AllArgsConstructor
+	private static class Staged {
+		/**
+		 * Position in the previous load order
+		 */
+		final int index;
+		final byte[] data;
+	}
+}
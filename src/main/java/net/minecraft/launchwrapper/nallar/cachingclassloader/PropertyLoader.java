@@ -6,6 +6,7 @@ import lombok.val;
 
 import java.io.*;
 import java.nio.file.*;
+import java.util.*;
 
 @UtilityClass
 public class PropertyLoader {
@@ -19,19 +20,194 @@ public class PropertyLoader {
 		return getBoolean("enableCaching", true);
 	}
 
+	static boolean enableResourceIndex() {
+		return getBoolean("enableResourceIndex", true);
+	}
+
 	static boolean onlyInvalidateCacheUsingCacheKey() {
 		return getBoolean("onlyInvalidateCacheUsingCacheKey", false);
 	}
 
+	/**
+	 * Percentage of cache hits to check against a fresh transformation after launch, 0 to not verify the cache
+	 */
+	static int verifyCachePercent() {
+		return getInt("verifyCachePercent", 0);
+	}
+
+	/**
+	 * Evict cached classes which don't match a fresh transformation when verifying the cache
+	 */
+	static boolean verifyCacheEvict() {
+		return getBoolean("verifyCacheEvict", false);
+	}
+
+	/**
+	 * Compare jars by content hash rather than modification time when checking whether the cache is still valid
+	 */
+	static boolean cacheStateContentHash() {
+		return getBoolean("cacheStateContentHash", false);
+	}
+
+	/**
+	 * Directory of a transformed class store shared by servers running the same pack, empty to not use one
+	 */
+	static String sharedCacheDirectory() {
+		return System.getProperty(PREFIX + "sharedCacheDirectory", "").trim();
+	}
+
+	/**
+	 * File to write the classes loaded by the parent class loader to, as a JVM class list. Set by Main's --cds mode.
+	 */
+	static String classListFile() {
+		return System.getProperty(PREFIX + "classListFile", "").trim();
+	}
+
+	static int writeQueueSize() {
+		return getInt("writeQueueSize", 4096);
+	}
+
+	/**
+	 * How often newly cached classes are forced to disk, 0 to only do so at shutdown
+	 */
+	static int checkpointIntervalSeconds() {
+		return getInt("checkpointIntervalSeconds", 15);
+	}
+
+	static int prefetchThreads() {
+		return getInt("prefetchThreads", 2);
+	}
+
+	/**
+	 * Open jars on a worker pool when they are added to the class loader, instead of when a class is first read from them
+	 */
+	static boolean eagerOpenJars() {
+		return getBoolean("eagerOpenJars", false);
+	}
+
+	static int eagerOpenJarThreads() {
+		return getInt("eagerOpenJarThreads", Runtime.getRuntime().availableProcessors());
+	}
+
+	static int prefetchBufferMegabytes() {
+		return getInt("prefetchBufferMegabytes", 64);
+	}
+
+	static boolean compactCache() {
+		return getBoolean("compactCache", true);
+	}
+
+	/**
+	 * Cached classes which have not been loaded for this many starts are removed when the cache is compacted
+	 */
+	static int evictAfterRuns() {
+		return getInt("evictAfterRuns", 10);
+	}
+
+	/**
+	 * Class names of transformers after which each class's intermediate output is cached, so a change to a later
+	 * transformer only reruns the transformers after the deepest of these
+	 */
+	static List<String> stageCheckpointTransformers() {
+		return getList("stageCheckpointTransformers");
+	}
+
+	/**
+	 * How cached classes are compressed, stored, deflate or dictionary. See {@link PackCodec}.
+	 */
+	static String cacheCodec() {
+		return System.getProperty(PREFIX + "cacheCodec", "stored").trim();
+	}
+
+	/**
+	 * Deflate level from 1 (fastest) to 9 (smallest) for the deflate and dictionary codecs
+	 */
+	static int cacheCompressionLevel() {
+		return Math.max(1, Math.min(9, getInt("cacheCompressionLevel", 6)));
+	}
+
+	/**
+	 * File to write a Chrome trace-event trace of class loading to, empty to not trace
+	 */
+	static String traceFile() {
+		return System.getProperty(PREFIX + "traceFile", "").trim();
+	}
+
+	/**
+	 * Events kept per thread when tracing, older events are overwritten
+	 */
+	static int traceBufferEvents() {
+		return getInt("traceBufferEvents", 1 << 18);
+	}
+
+	/**
+	 * Set by --bakeCache, transforms every class and exits when the launch target is loaded instead of launching
+	 */
+	public static boolean bakeCache() {
+		return getBoolean("bakeCache", false);
+	}
+
+	static boolean parallelTransform() {
+		return getBoolean("parallelTransform", false);
+	}
+
+	static int parallelTransformThreads() {
+		return getInt("parallelTransformThreads", Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+	/**
+	 * Class name prefixes of transformers which are safe to run concurrently, in addition to those implementing
+	 * {@link ThreadSafeTransformer}
+	 */
+	static List<String> threadSafeTransformers() {
+		return getList("threadSafeTransformers");
+	}
+
+	/**
+	 * Maximum size of untransformed class bytes kept in LaunchClassLoader.resourceCache, negative for no limit. Bytes
+	 * are usually read once just before transforming, so evicted entries are rarely needed again.
+	 */
+	public static int resourceCacheMaxMegabytes() {
+		return getInt("resourceCacheMaxMegabytes", 128);
+	}
+
+	public static boolean releaseResourceCacheAtLaunch() {
+		return getBoolean("releaseResourceCacheAtLaunch", true);
+	}
+
 	static String getCacheKey() {
 		val key = System.getProperty(PREFIX + "cacheKeyOverride");
 		return key == null || key.isEmpty() ? "none" : key;
 	}
 
+	/**
+	 * Files or directories, relative to the server directory, whose contents are included in the cache key
+	 */
+	static List<String> cacheKeyFiles() {
+		return getList("cacheKeyFiles");
+	}
+
 	private static boolean getBoolean(String key, boolean def) {
 		return Boolean.parseBoolean(System.getProperty(PREFIX + key, String.valueOf(def)));
 	}
 
+	private static List<String> getList(String key) {
+		val value = System.getProperty(PREFIX + key, "");
+		val list = new ArrayList<String>();
+		for (val part : value.split(","))
+			if (!part.trim().isEmpty())
+				list.add(part.trim());
+		return list;
+	}
+
+	private static int getInt(String key, int def) {
+		try {
+			return Integer.parseInt(System.getProperty(PREFIX + key, String.valueOf(def)).trim());
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
 	@SneakyThrows
 	public static void loadPropertiesFromFile(File file) {
 		if (!file.exists()) {
@@ -39,8 +215,13 @@ public class PropertyLoader {
 				"enableCaching=true\r\n" +
 					"serverJar=\r\n" +
 					"cacheKeyOverride=\r\n" +
+					"cacheKeyFiles=\r\n" +
 					"onlyInvalidateCacheUsingCacheKey=false\r\n" +
-					"enableSpongeWorkarounds=true\r\n"
+					"cacheStateContentHash=false\r\n" +
+					"enableSpongeWorkarounds=true\r\n" +
+					"resourceCacheMaxMegabytes=128\r\n" +
+					"releaseResourceCacheAtLaunch=true\r\n" +
+					"enableResourceIndex=true\r\n"
 			).getBytes());
 		}
 		String data = new String(Files.readAllBytes(file.toPath()));
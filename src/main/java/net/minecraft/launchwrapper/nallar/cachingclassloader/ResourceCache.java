@@ -0,0 +1,167 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.val;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Map of class name to untransformed class bytes, limited by the total size of the stored bytes
+ * <p>
+ * Entries are evicted oldest first once maxBytes is exceeded, class bytes are usually read once just before the class
+ * is transformed so insertion order is a good approximation of use. Empty arrays are used as negative entries, these
+ * have no weight, are never evicted and are kept by {@link #releasePositiveEntries()}, after which positive entries
+ * are no longer stored at all.
+ */
+public class ResourceCache extends AbstractMap<String, byte[]> {
+	private final Map<String, byte[]> map = new ConcurrentHashMap<>();
+	private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+	private final long maxBytes;
+	private final AtomicLong retainedBytes = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder releasedBytes = new LongAdder();
+	private final EntrySet entrySet = new EntrySet();
+	private volatile boolean retainPositive = true;
+
+	/**
+	 * @param maxBytes maximum total size of positive entries, negative for no limit
+	 */
+	public ResourceCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		Metrics.register(Metrics.RESOURCE_CACHE, this::counters);
+	}
+
+	@Override
+	public byte[] get(Object key) {
+		val value = map.get(key);
+		if (value == null)
+			misses.increment();
+		else
+			hits.increment();
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public byte[] put(String key, byte[] value) {
+		if (value.length != 0 && !retainPositive)
+			return remove(key);
+		val old = map.put(key, value);
+		if (old != null)
+			retainedBytes.addAndGet(-old.length);
+		if (value.length != 0) {
+			retainedBytes.addAndGet(value.length);
+			// Only needed to find the oldest entries to evict
+			if (maxBytes >= 0) {
+				insertionOrder.add(key);
+				evict();
+			}
+		}
+		return old;
+	}
+
+	@Override
+	public byte[] remove(Object key) {
+		val old = map.remove(key);
+		if (old != null)
+			retainedBytes.addAndGet(-old.length);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		map.clear();
+		insertionOrder.clear();
+		retainedBytes.set(0);
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public Set<Entry<String, byte[]>> entrySet() {
+		return entrySet;
+	}
+
+	private void evict() {
+		String key;
+		while (retainedBytes.get() > maxBytes && (key = insertionOrder.poll()) != null) {
+			val value = map.get(key);
+			// Key may have been removed or replaced by a negative entry since it was queued
+			if (value != null && value.length != 0 && map.remove(key, value)) {
+				retainedBytes.addAndGet(-value.length);
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Removes all positive entries and stops storing new ones, keeping negative entries
+	 */
+	public void releasePositiveEntries() {
+		retainPositive = false;
+		insertionOrder.clear();
+		for (val e : map.entrySet()) {
+			val value = e.getValue();
+			if (value.length != 0 && map.remove(e.getKey(), value)) {
+				retainedBytes.addAndGet(-value.length);
+				releasedBytes.add(value.length);
+			}
+		}
+	}
+
+	public long getRetainedBytes() {
+		return retainedBytes.get();
+	}
+
+	private Map<String, Long> counters() {
+		val result = new LinkedHashMap<String, Long>();
+		result.put("retainedBytes", retainedBytes.get());
+		result.put("maxBytes", maxBytes);
+		result.put("hits", hits.sum());
+		result.put("misses", misses.sum());
+		result.put("evictions", evictions.sum());
+		result.put("releasedBytes", releasedBytes.sum());
+		return result;
+	}
+
+	private class EntrySet extends AbstractSet<Entry<String, byte[]>> {
+		@Override
+		public Iterator<Entry<String, byte[]>> iterator() {
+			val iterator = map.entrySet().iterator();
+			return new Iterator<Entry<String, byte[]>>() {
+				private Entry<String, byte[]> last;
+
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public Entry<String, byte[]> next() {
+					return last = iterator.next();
+				}
+
+				@Override
+				public void remove() {
+					iterator.remove();
+					retainedBytes.addAndGet(-last.getValue().length);
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.AllArgsConstructor;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.*;
+
+/**
+ * Index of the entries in each jar on the class loader's search path, persisted between starts
+ * <p>
+ * Resources are looked up by package directory, then by a 64 bit hash of their name in each jar containing that
+ * package, in search order, so finding a resource (or confirming it is missing) doesn't probe every jar's central
+ * directory, or open any jar at all when its index was saved by a previous start. Jars are re-indexed when their size or
+ * modification time changes. Manifest Class-Path entries are expanded after the jar which references them, as
+ * URLClassPath does.
+ * <p>
+ * If any source is not a local jar the index is incomplete and {@link #canFind} returns false for every name.
+ */
+public class ResourceIndex {
+	private static final int VERSION = 1;
+	private final File file;
+	private final boolean enabled;
+	/**
+	 * Indexes saved by previous starts, by jar path
+	 */
+	private final Map<String, JarIndex> saved = new HashMap<>();
+	private final Set<String> seenUrls = new HashSet<>();
+	private final Map<String, int[]> packages = new ConcurrentHashMap<>();
+	private volatile Source[] sources = new Source[0];
+	private volatile boolean complete = true;
+	private boolean dirty;
+
+	ResourceIndex(File file, boolean enabled) {
+		this.file = file;
+		this.enabled = enabled;
+		if (enabled && file.exists())
+			load();
+	}
+
+	private void load() {
+		try (val is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (is.readInt() != VERSION)
+				return;
+			val count = is.readInt();
+			for (int i = 0; i < count; i++) {
+				val path = is.readUTF();
+				val size = is.readLong();
+				val lastModified = is.readLong();
+				val classPath = new String[is.readInt()];
+				for (int j = 0; j < classPath.length; j++)
+					classPath[j] = is.readUTF();
+				val jarPackages = new String[is.readInt()];
+				for (int j = 0; j < jarPackages.length; j++)
+					jarPackages[j] = is.readUTF();
+				val hashes = new long[is.readInt()];
+				for (int j = 0; j < hashes.length; j++)
+					hashes[j] = is.readLong();
+				saved.put(path, new JarIndex(size, lastModified, classPath, jarPackages, hashes));
+			}
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Error occured trying to read resource index from " + file);
+			saved.clear();
+		}
+	}
+
+	synchronized void save() {
+		if (!enabled || (!dirty && file.exists()))
+			return;
+
+		val temp = new File(file.getParentFile(), file.getName() + ".temp");
+		try {
+			try (val os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				os.writeInt(VERSION);
+				os.writeInt(sources.length);
+				for (val source : sources) {
+					val index = source.index;
+					os.writeUTF(source.path);
+					os.writeLong(index.size);
+					os.writeLong(index.lastModified);
+					os.writeInt(index.classPath.length);
+					for (val s : index.classPath)
+						os.writeUTF(s);
+					os.writeInt(index.packages.length);
+					for (val s : index.packages)
+						os.writeUTF(s);
+					os.writeInt(index.hashes.length);
+					for (val hash : index.hashes)
+						os.writeLong(hash);
+				}
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Error occured trying to write resource index to " + file);
+		}
+	}
+
+	/**
+	 * Adds a URL to the end of the search path
+	 */
+	public synchronized void add(URL url) {
+		if (!enabled || !complete || !seenUrls.add(url.toString()))
+			return;
+
+		if (!"file".equals(url.getProtocol())) {
+			incomplete(url);
+			return;
+		}
+
+		File f;
+		try {
+			f = new File(url.toURI());
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			incomplete(url);
+			return;
+		}
+		if (f.isDirectory()) {
+			incomplete(url);
+			return;
+		}
+		// URLClassPath skips sources it can't open
+		if (!f.isFile())
+			return;
+
+		val path = f.getPath();
+		JarIndex index = saved.get(path);
+		if (index == null || index.size != f.length() || index.lastModified != f.lastModified()) {
+			try {
+				index = JarIndex.of(f);
+			} catch (IOException e) {
+				incomplete(url);
+				return;
+			}
+			saved.put(path, index);
+			dirty = true;
+		}
+
+		val position = sources.length;
+		val newSources = Arrays.copyOf(sources, position + 1);
+		newSources[position] = new Source(path, "jar:" + url + "!/", index);
+		for (val packageName : index.packages)
+			packages.merge(packageName, new int[]{position}, (a, b) -> {
+				val merged = Arrays.copyOf(a, a.length + 1);
+				merged[a.length] = b[0];
+				return merged;
+			});
+		sources = newSources;
+
+		for (val classPathEntry : index.classPath)
+			try {
+				add(new URL(url, classPathEntry));
+			} catch (MalformedURLException e) {
+				LogWrapper.fine("Ignoring invalid Class-Path entry %s in %s", classPathEntry, url);
+			}
+	}
+
+	private void incomplete(URL url) {
+		LogWrapper.info("Not using resource index as %s is not a local jar", url);
+		complete = false;
+		packages.clear();
+		sources = new Source[0];
+	}
+
+	/**
+	 * @return whether {@link #find} gives the same result as URLClassLoader.findResource for this name
+	 */
+	public boolean canFind(String name) {
+		if (!enabled || !complete)
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			val c = name.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '/' || c == '.' || c == '_' || c == '$' || c == '-'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return URL of the first resource with this name on the search path, or null if there is none
+	 */
+	public URL find(String name) {
+		val source = findSource(name);
+		if (source == null)
+			return null;
+		try {
+			return new URL(source.resourceBase + name);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return path of the first jar on the search path containing this resource, or null if there is none
+	 */
+	String findJar(String name) {
+		val source = findSource(name);
+		return source == null ? null : source.path;
+	}
+
+	private Source findSource(String name) {
+		val candidates = packages.get(packageOf(name));
+		if (candidates == null)
+			return null;
+
+		val hash = Hashes.hash(name);
+		val sources = this.sources;
+		for (val position : candidates) {
+			if (position >= sources.length)
+				break;
+			val source = sources[position];
+			if (Arrays.binarySearch(source.index.hashes, hash) >= 0)
+				return source;
+		}
+		return null;
+	}
+
+	private static String packageOf(String name) {
+		// Directory entries end with '/', their package is their parent
+		val end = name.endsWith("/") ? name.length() - 1 : name.length();
+		val lastSlash = name.lastIndexOf('/', end - 1);
+		return lastSlash == -1 ? "" : name.substring(0, lastSlash);
+	}
+
+	@AllArgsConstructor
+	private static class Source {
+		final String path;
+		final String resourceBase;
+		final JarIndex index;
+	}
+
+	@AllArgsConstructor
+	private static class JarIndex {
+		final long size;
+		final long lastModified;
+		final String[] classPath;
+		final String[] packages;
+		/**
+		 * Sorted hashes of entry names
+		 */
+		final long[] hashes;
+
+		static JarIndex of(File f) throws IOException {
+			val size = f.length();
+			val lastModified = f.lastModified();
+			try (val jar = new JarFile(f, false)) {
+				val packageNames = new HashSet<String>();
+				val hashes = new long[jar.size()];
+				int count = 0;
+				for (val entry : Collections.list(jar.entries())) {
+					val name = entry.getName();
+					if (count == hashes.length)
+						break;
+					hashes[count++] = Hashes.hash(name);
+					packageNames.add(packageOf(name));
+				}
+				val sorted = Arrays.copyOf(hashes, count);
+				Arrays.sort(sorted);
+
+				String[] classPath = new String[0];
+				val manifest = jar.getManifest();
+				val classPathAttribute = manifest == null ? null : manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+				if (classPathAttribute != null && !classPathAttribute.trim().isEmpty())
+					classPath = classPathAttribute.trim().split("\\s+");
+				return new JarIndex(size, lastModified, classPath, packageNames.toArray(new String[0]), sorted);
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.SneakyThrows;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Content-addressed store of transformed classes which can be shared by several servers running the same pack
+ * <p>
+ * Classes are keyed by a SHA-1 of the pack key (mod set and cache key), class name, transformer chain and untransformed
+ * bytes. A key file holds the SHA-1 of the transformed bytes, which are stored once in a blob file named by that hash,
+ * so identical outputs are only stored once. Files are written to tmp/ and atomically moved into place, so readers never
+ * see partial files and concurrent writers of the same class just replace identical content.
+ * <p>
+ * Every process using the store holds a shared lock on store.lock. Leftover temporary files from crashed writers are
+ * only removed by a process which can take the lock exclusively, as then no other process can be writing them.
+ */
+class SharedStore implements Closeable {
+	private static final int QUEUE_SIZE = 1024;
+	private final File keys;
+	private final File blobs;
+	private final File tmp;
+	private final long packKey;
+	private final FileChannel lockChannel;
+	private final ExecutorService publisher;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder published = new LongAdder();
+
+	@SneakyThrows
+	private SharedStore(File root, long packKey) {
+		this.packKey = packKey;
+		keys = new File(root, "keys");
+		blobs = new File(root, "blobs");
+		tmp = new File(root, "tmp");
+		for (val d : new File[]{keys, blobs, tmp})
+			if (!d.isDirectory() && !d.mkdirs())
+				throw new IOException("Can't create directory: " + d);
+
+		lockChannel = FileChannel.open(new File(root, "store.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+		try (val exclusive = lockChannel.tryLock()) {
+			if (exclusive != null)
+				removeTemporaryFiles();
+		} catch (OverlappingFileLockException ignored) {
+		}
+		lockChannel.lock(0, Long.MAX_VALUE, true);
+
+		publisher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+			val thread = new Thread(r, "CachingClassLoader shared store publisher");
+			thread.setDaemon(true);
+			return thread;
+		}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/**
+	 * @return the store, or null if it couldn't be opened
+	 */
+	static SharedStore open(File root, long packKey) {
+		try {
+			return new SharedStore(root, packKey);
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Failed to open shared class cache at %s, it will not be used", root);
+			return null;
+		}
+	}
+
+	private void removeTemporaryFiles() {
+		val files = tmp.listFiles();
+		if (files != null)
+			for (val f : files)
+				if (!f.delete())
+					LogWrapper.fine("Unable to remove temporary file %s", f);
+	}
+
+	byte[] key(String name, TransformerChain chain, byte[] untransformed) {
+		val digest = sha1();
+		digest.update(ByteBuffer.allocate(20).putLong(packKey).putInt(chain.length()).putLong(chain.hash()).array());
+		digest.update(name.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(untransformed);
+		return digest.digest();
+	}
+
+	/**
+	 * @return transformed bytes stored under this key, or null if there are none
+	 */
+	byte[] get(byte[] key) {
+		try {
+			val keyFile = file(keys, key);
+			if (!keyFile.exists()) {
+				misses.increment();
+				return null;
+			}
+			val blobHash = Files.readAllBytes(keyFile.toPath());
+			val data = Files.readAllBytes(file(blobs, blobHash).toPath());
+			// Guards against a blob which was damaged outside of this store's atomic publishes
+			if (!MessageDigest.isEqual(sha1().digest(data), blobHash)) {
+				misses.increment();
+				return null;
+			}
+			hits.increment();
+			return data;
+		} catch (IOException e) {
+			misses.increment();
+			return null;
+		}
+	}
+
+	/**
+	 * Publishes transformed bytes under this key on a background thread, dropped if the publisher falls behind
+	 */
+	void put(byte[] key, byte[] data) {
+		publisher.execute(() -> {
+			try {
+				val blobHash = sha1().digest(data);
+				val blob = file(blobs, blobHash);
+				if (!blob.exists())
+					publish(blob, data);
+				publish(file(keys, key), blobHash);
+				published.increment();
+			} catch (IOException e) {
+				LogWrapper.fine("Unable to publish to shared class cache: %s", e);
+			}
+		});
+	}
+
+	private void publish(File target, byte[] data) throws IOException {
+		val dir = target.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Can't create directory: " + dir);
+		val temp = Files.createTempFile(tmp.toPath(), "publish", ".tmp");
+		try {
+			Files.write(temp, data);
+			Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static File file(File dir, byte[] hash) {
+		val hex = new StringBuilder(hash.length * 2);
+		for (val b : hash)
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return new File(new File(dir, hex.substring(0, 2)), hex.substring(2));
+	}
+
+	@SneakyThrows
+	private static MessageDigest sha1() {
+		return MessageDigest.getInstance("SHA-1");
+	}
+
+	@Override
+	public void close() throws IOException {
+		publisher.shutdown();
+		try {
+			publisher.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lockChannel.close();
+		LogWrapper.info("Shared class cache: " + hits.sum() + " hits, " + misses.sum() + " misses, " + published.sum() + " classes published.");
+	}
+}
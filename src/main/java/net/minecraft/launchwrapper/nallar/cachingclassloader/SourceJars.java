@@ -0,0 +1,61 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.experimental.UtilityClass;
+import lombok.val;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+
+/**
+ * Maps class resource URLs to the jar they were loaded from, and records the state of those jars so cached entries
+ * can be invalidated per jar
+ */
+@UtilityClass
+class SourceJars {
+	/**
+	 * @param url jar:file:/path/to.jar!/entry or file:/path/to.jar URL
+	 * @return the jar file, or null if the URL does not refer to a local jar
+	 */
+	static File fileFor(URL url) {
+		if (url == null)
+			return null;
+
+		String spec = url.toString();
+		if (spec.startsWith("jar:")) {
+			val separator = spec.indexOf("!/");
+			spec = spec.substring(4, separator == -1 ? spec.length() : separator);
+		}
+		if (!spec.startsWith("file:"))
+			return null;
+
+		try {
+			val file = new File(new URI(spec));
+			return file.isFile() ? file : null;
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return size followed by modification time, or content hash if cacheStateContentHash is enabled
+	 */
+	static byte[] state(File file) {
+		return ByteBuffer.allocate(16).putLong(file.length()).putLong(version(file)).array();
+	}
+
+	private static long version(File file) {
+		return PropertyLoader.cacheStateContentHash() ? Fingerprints.hash(file) : file.lastModified();
+	}
+
+	/**
+	 * @param state data starting with the result of {@link #state}
+	 */
+	static boolean matches(String path, byte[] state) {
+		val file = new File(path);
+		if (state.length < 16 || !file.isFile())
+			return false;
+		val buffer = ByteBuffer.wrap(state);
+		return buffer.getLong() == file.length() && buffer.getLong() == version(file);
+	}
+}
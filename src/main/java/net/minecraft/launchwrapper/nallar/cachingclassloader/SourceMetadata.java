@@ -0,0 +1,130 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.jar.*;
+
+/**
+ * What LaunchClassLoader needs from a source jar to define a cached class from it without opening the jar: the jar's
+ * URL, its manifest for package definitions, and whether it is signed
+ * <p>
+ * Stored in the pack after the jar's state in its SOURCE record, so it is discarded whenever the jar changes.
+ */
+public class SourceMetadata {
+	@Getter
+	private final URL jarUrl;
+	/**
+	 * Prefix of class resource URLs in this jar, matches the URLs URLClassPath creates
+	 */
+	private final String resourceBase;
+	@Getter
+	private final boolean signed;
+	private final byte[] manifestBytes;
+	private volatile Manifest manifest;
+
+	private SourceMetadata(URL jarUrl, boolean signed, byte[] manifestBytes) {
+		this.jarUrl = jarUrl;
+		this.signed = signed;
+		this.manifestBytes = manifestBytes;
+		resourceBase = "jar:" + jarUrl + "!/";
+	}
+
+	/**
+	 * @return SOURCE record data for the jar containing the given resource
+	 */
+	@SneakyThrows
+	static byte[] describe(File jar, URL resource) {
+		val bos = new ByteArrayOutputStream();
+		val os = new DataOutputStream(bos);
+		os.write(SourceJars.state(jar));
+		try {
+			val connection = resource.openConnection();
+			if (connection instanceof JarURLConnection) {
+				val jarConnection = (JarURLConnection) connection;
+				val jarFile = jarConnection.getJarFile();
+				// Written separately so a failure part way through doesn't leave partial metadata
+				val metadataBytes = new ByteArrayOutputStream();
+				val metadata = new DataOutputStream(metadataBytes);
+				metadata.writeBoolean(true);
+				metadata.writeUTF(jarConnection.getJarFileURL().toString());
+				metadata.writeBoolean(hasSignatureFiles(jarFile));
+				val manifest = jarFile.getManifest();
+				if (manifest == null) {
+					metadata.writeInt(-1);
+				} else {
+					val manifestBytes = new ByteArrayOutputStream();
+					manifest.write(manifestBytes);
+					metadata.writeInt(manifestBytes.size());
+					manifestBytes.writeTo(metadata);
+				}
+				metadataBytes.writeTo(os);
+				return bos.toByteArray();
+			}
+		} catch (IOException e) {
+			LogWrapper.fine("Unable to read metadata for %s: %s", jar, e);
+		}
+		os.writeBoolean(false);
+		return bos.toByteArray();
+	}
+
+	/**
+	 * @return metadata stored by {@link #describe}, or null if there is none
+	 */
+	@SneakyThrows
+	static SourceMetadata read(byte[] data) {
+		val is = new DataInputStream(new ByteArrayInputStream(data));
+		if (is.skipBytes(16) != 16 || !is.readBoolean())
+			return null;
+
+		val jarUrl = new URL(is.readUTF());
+		val signed = is.readBoolean();
+		val manifestLength = is.readInt();
+		byte[] manifestBytes = null;
+		if (manifestLength >= 0) {
+			manifestBytes = new byte[manifestLength];
+			is.readFully(manifestBytes);
+		}
+		return new SourceMetadata(jarUrl, signed, manifestBytes);
+	}
+
+	private static boolean hasSignatureFiles(JarFile jarFile) {
+		for (val entry : Collections.list(jarFile.entries())) {
+			val name = entry.getName().toUpperCase(Locale.ENGLISH);
+			if (name.startsWith("META-INF/") && name.endsWith(".SF"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the jar's manifest, or null if it does not have one
+	 */
+	@SneakyThrows
+	public Manifest getManifest() {
+		if (manifestBytes == null)
+			return null;
+		Manifest manifest = this.manifest;
+		if (manifest == null)
+			this.manifest = manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+		return manifest;
+	}
+
+	/**
+	 * @return URL for a resource in this jar, or null if the name would need encoding to match URLClassPath's URL
+	 */
+	@SneakyThrows
+	public URL getResource(String resourceName) {
+		for (int i = 0; i < resourceName.length(); i++) {
+			val c = resourceName.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '/' || c == '.' || c == '_' || c == '$' || c == '-'))
+				return null;
+		}
+		return new URL(resourceBase + resourceName);
+	}
+}
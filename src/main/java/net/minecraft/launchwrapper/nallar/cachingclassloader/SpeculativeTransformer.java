@@ -0,0 +1,113 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.val;
+import net.minecraft.launchwrapper.IClassTransformer;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Transforms classes which were loaded during the previous run but are not cached on a fork-join pool, ahead of the
+ * real class loads.
+ * <p>
+ * Only the leading thread safe transformers in the chain are run. If every transformer is thread safe the result is
+ * cached as normal, otherwise the partial result is kept in memory and findClass runs the remaining transformers
+ * serially when the class is actually loaded.
+ */
+public class SpeculativeTransformer {
+	private final ForkJoinPool pool;
+	private final AtomicInteger remaining;
+	private final AtomicInteger transformed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final long started = System.nanoTime();
+
+	private SpeculativeTransformer(List<String> names, int stageLength, Stage stage, ClassLoader classLoader) {
+		val threads = Math.max(1, PropertyLoader.parallelTransformThreads());
+		pool = new ForkJoinPool(threads, p -> {
+			val thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			thread.setName("CachingClassLoader transform " + thread.getPoolIndex());
+			thread.setDaemon(true);
+			thread.setContextClassLoader(classLoader);
+			return thread;
+		}, null, false);
+		remaining = new AtomicInteger(names.size());
+		for (val name : names)
+			pool.execute(() -> {
+				try {
+					if (stage.run(name, stageLength))
+						transformed.incrementAndGet();
+				} catch (Throwable t) {
+					failed.incrementAndGet();
+					LogWrapper.log(Level.DEBUG, t, "Speculative transformation of %s failed", name);
+				} finally {
+					if (remaining.decrementAndGet() == 0)
+						finished(threads, stageLength);
+				}
+			});
+	}
+
+	/**
+	 * @return null if parallel transformation is disabled, or there is nothing to do
+	 */
+	public static SpeculativeTransformer start(Cache cache, TransformerChain chain, Stage stage, ClassLoader classLoader) {
+		if (!PropertyLoader.parallelTransform() || chain.length() == 0)
+			return null;
+
+		val stageLength = threadSafePrefixLength(chain);
+		if (stageLength == 0) {
+			LogWrapper.info("Not transforming classes in parallel as the first transformer, " + chain.transformers[0].getClass().getName() + ", is not marked as thread safe");
+			return null;
+		}
+
+		val names = cache.getUncachedPreviousLoads(chain);
+		if (names.isEmpty())
+			return null;
+
+		LogWrapper.info("Transforming " + names.size() + " classes in parallel through " + stageLength + "/" + chain.length() + " transformers");
+		return new SpeculativeTransformer(names, stageLength, stage, classLoader);
+	}
+
+	static int threadSafePrefixLength(TransformerChain chain) {
+		val whitelist = PropertyLoader.threadSafeTransformers();
+		int length = 0;
+		for (val transformer : chain.transformers) {
+			if (!isThreadSafe(transformer, whitelist))
+				break;
+			length++;
+		}
+		return length;
+	}
+
+	private static boolean isThreadSafe(IClassTransformer transformer, List<String> whitelist) {
+		if (transformer instanceof ThreadSafeTransformer)
+			return true;
+		val name = transformer.getClass().getName();
+		for (val prefix : whitelist)
+			if (name.startsWith(prefix))
+				return true;
+		return false;
+	}
+
+	private void finished(int threads, int stageLength) {
+		LogWrapper.info("Parallel transformation finished on " + threads + " threads in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms: " + transformed.get() + " classes transformed through " + stageLength + " transformers, " + failed.get() + " failed.");
+		pool.shutdown();
+	}
+
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	@FunctionalInterface
+	public interface Stage {
+		/**
+		 * Transforms the given class through the first transformers, and passes the result to
+		 * {@link Cache#saveStage}
+		 *
+		 * @return false if the class was skipped
+		 */
+		boolean run(String transformedName, int transformers) throws Exception;
+	}
+}
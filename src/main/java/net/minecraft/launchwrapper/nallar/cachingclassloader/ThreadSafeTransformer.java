@@ -0,0 +1,10 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+/**
+ * Marks an IClassTransformer as safe to call concurrently for different classes, and free of side effects which
+ * depend on the order classes are transformed in.
+ * <p>
+ * Transformers can also be marked as thread safe without implementing this using the threadSafeTransformers option.
+ */
+public interface ThreadSafeTransformer {
+}
@@ -0,0 +1,155 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.experimental.UtilityClass;
+import lombok.val;
+import net.minecraft.launchwrapper.LogWrapper;
+import org.apache.logging.log4j.Level;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Opt-in tracer of class loading, enabled by setting traceFile
+ * <p>
+ * Begin and end events for findClass, transformer invocations, cache reads and defineClass are recorded into a ring
+ * buffer per thread, which only its own thread writes to, so recording doesn't lock or allocate. The buffers are
+ * written as Chrome trace-event JSON, which chrome://tracing and Perfetto show as a flame chart per thread, when the
+ * launch target is loaded and again at shutdown. Once a buffer is full the oldest events are overwritten.
+ */
+@UtilityClass
+public class Tracer {
+	public static final byte FIND_CLASS = 0;
+	public static final byte TRANSFORM = 1;
+	public static final byte CACHE_READ = 2;
+	public static final byte DEFINE_CLASS = 3;
+	private static final String[] CATEGORIES = {"findClass", "transform", "cacheRead", "defineClass"};
+	private static final byte END = -1;
+	private static final String file = PropertyLoader.traceFile();
+	private static final boolean enabled = !file.isEmpty();
+	private static final int capacity = Integer.highestOneBit(Math.max(1024, PropertyLoader.traceBufferEvents()));
+	private static final long startNanos = System.nanoTime();
+	private static final Queue<Ring> rings = new ConcurrentLinkedQueue<>();
+	private static final ThreadLocal<Ring> threadRing = ThreadLocal.withInitial(() -> {
+		val ring = new Ring(Thread.currentThread());
+		rings.add(ring);
+		return ring;
+	});
+
+	static {
+		if (enabled)
+			Runtime.getRuntime().addShutdownHook(new Thread(Tracer::write, "CachingClassLoader trace writer"));
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void begin(byte category, String name) {
+		if (enabled)
+			threadRing.get().add(category, name);
+	}
+
+	public static void end() {
+		if (enabled)
+			threadRing.get().add(END, null);
+	}
+
+	public static synchronized void write() {
+		if (!enabled)
+			return;
+
+		val target = new File(file);
+		val temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".temp");
+		int events = 0;
+		try {
+			try (val out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+				out.write("{\"traceEvents\":[\n");
+				boolean first = true;
+				for (val r : rings) {
+					if (!first)
+						out.write(",\n");
+					first = false;
+					out.write("{\"ph\":\"M\",\"pid\":1,\"tid\":" + r.threadId + ",\"name\":\"thread_name\",\"args\":{\"name\":\"" + escape(r.threadName) + "\"}}");
+					events += r.write(out);
+				}
+				out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LogWrapper.info("Wrote " + events + " class loading trace events to " + target);
+		} catch (Throwable t) {
+			LogWrapper.log(Level.WARN, t, "Failed to write class loading trace to %s", target);
+		}
+	}
+
+	private static String escape(String s) {
+		val sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			val c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static class Ring {
+		final long threadId;
+		final String threadName;
+		final long[] times = new long[capacity];
+		final byte[] categories = new byte[capacity];
+		final String[] names = new String[capacity];
+		/**
+		 * Total events added, only written by the owning thread
+		 */
+		volatile long added;
+
+		Ring(Thread thread) {
+			threadId = thread.getId();
+			threadName = thread.getName();
+		}
+
+		void add(byte category, String name) {
+			val index = added;
+			val slot = (int) index & (capacity - 1);
+			times[slot] = System.nanoTime();
+			categories[slot] = category;
+			names[slot] = name;
+			added = index + 1;
+		}
+
+		/**
+		 * Writes the events still in the buffer, skipping ends whose begin has been overwritten
+		 *
+		 * @return number of events written
+		 */
+		int write(Writer out) throws IOException {
+			val end = added;
+			val start = Math.max(0, end - capacity);
+			int depth = 0;
+			int written = 0;
+			for (long i = start; i < end; i++) {
+				val slot = (int) i & (capacity - 1);
+				val category = categories[slot];
+				val ts = (times[slot] - startNanos) / 1000.0;
+				if (category == END) {
+					if (depth == 0)
+						continue;
+					depth--;
+					out.write(",\n{\"ph\":\"E\",\"pid\":1,\"tid\":" + threadId + ",\"ts\":" + ts + "}");
+				} else {
+					depth++;
+					val name = names[slot];
+					out.write(",\n{\"ph\":\"B\",\"pid\":1,\"tid\":" + threadId + ",\"ts\":" + ts + ",\"cat\":\"" + CATEGORIES[category] + "\",\"name\":\"" + escape(name == null ? CATEGORIES[category] : name) + "\"}");
+				}
+				written++;
+			}
+			return written;
+		}
+	}
+}
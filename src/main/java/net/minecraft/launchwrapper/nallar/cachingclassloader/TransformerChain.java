@@ -0,0 +1,92 @@
+package net.minecraft.launchwrapper.nallar.cachingclassloader;
+
+import lombok.val;
+import net.minecraft.launchwrapper.IClassTransformer;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Snapshot of the registered transformers, with a fingerprint for each prefix of the chain
+ * <p>
+ * A cached class records the length and fingerprint of the chain which produced it. It is only reused with the same
+ * chain, so adding, removing, reordering or changing the contents of the jar of any transformer invalidates it, while
+ * classes transformed before a transformer was registered are still reusable at the same point next start. Stages, the
+ * output of a prefix of the chain, are reused while that prefix is unchanged.
+ */
+public final class TransformerChain {
+	private static final Map<Class<?>, Long> fingerprints = new ConcurrentHashMap<>();
+	private static volatile TransformerChain last = new TransformerChain(new IClassTransformer[0]);
+	final IClassTransformer[] transformers;
+	/**
+	 * prefixHashes[n] is the fingerprint of the first n transformers
+	 */
+	private final long[] prefixHashes;
+
+	private TransformerChain(IClassTransformer[] transformers) {
+		this.transformers = transformers;
+		prefixHashes = new long[transformers.length + 1];
+		prefixHashes[0] = Hashes.SEED;
+		for (int i = 0; i < transformers.length; i++)
+			prefixHashes[i + 1] = Hashes.mix(prefixHashes[i], fingerprint(transformers[i].getClass()));
+	}
+
+	public static TransformerChain of(List<IClassTransformer> transformers) {
+		val last = TransformerChain.last;
+		if (last.sameAs(transformers))
+			return last;
+
+		return TransformerChain.last = new TransformerChain(transformers.toArray(new IClassTransformer[0]));
+	}
+
+	private static long fingerprint(Class<?> transformerClass) {
+		return fingerprints.computeIfAbsent(transformerClass, clazz -> {
+			long hash = Hashes.hash(clazz.getName());
+			val codeSource = clazz.getProtectionDomain().getCodeSource();
+			val jar = codeSource == null ? null : SourceJars.fileFor(codeSource.getLocation());
+			if (jar != null)
+				hash = Hashes.mix(hash, Fingerprints.hash(jar));
+			return hash;
+		});
+	}
+
+	private boolean sameAs(List<IClassTransformer> other) {
+		if (other.size() != transformers.length)
+			return false;
+		for (int i = 0; i < transformers.length; i++)
+			if (other.get(i) != transformers[i])
+				return false;
+		return true;
+	}
+
+	public int length() {
+		return transformers.length;
+	}
+
+	public long hash() {
+		return prefixHashes[transformers.length];
+	}
+
+	/**
+	 * @return fingerprint of the first length transformers
+	 */
+	long hash(int length) {
+		return prefixHashes[length];
+	}
+
+	/**
+	 * @return whether a class produced by a chain of the given length and fingerprint is valid for this chain. The whole
+	 * chain must match, a class cached before a transformer was added to the end must still be run through it.
+	 */
+	boolean matches(int length, long hash) {
+		return length == transformers.length && prefixHashes[length] == hash;
+	}
+
+	/**
+	 * @return whether the output of the first length transformers of a chain with the given fingerprint is valid as the
+	 * output of the same prefix of this chain
+	 */
+	boolean matchesPrefix(int length, long hash) {
+		return length >= 0 && length <= transformers.length && prefixHashes[length] == hash;
+	}
+}